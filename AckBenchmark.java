@@ -0,0 +1,224 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Measures what acknowledgements cost in msend throughput. A coordinator is
+ * started in this JVM and the requested number of simulated participants
+ * register with it on the binary protocol. One of them multicasts messages as
+ * fast as the coordinator answers and the time until every member received
+ * every message is measured. With acknowledgements the simulated participants
+ * acknowledge after every read, as thread-B does after every commit.
+ *
+ * Run one configuration per JVM, e.g.
+ * java -Dcoordinator.acks=true AckBenchmark 10 200000
+ * java -Dcoordinator.acks=false AckBenchmark 10 200000
+ */
+public class AckBenchmark {
+
+	static final long DELIVERY_TIMEOUT_MS = 60000;
+
+	int participants;
+	int messages;
+
+	List<Socket> controlSockets = new ArrayList<Socket>();
+
+	// Receive side shared by all simulated participants
+	ServerSocketChannel msendServer;
+	boolean acks;
+	volatile long deliveries;
+	volatile long ackFrames;
+
+	AckBenchmark(int participants, int messages) {
+		this.participants = participants;
+		this.messages = messages;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int participants = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		new AckBenchmark(participants, messages).run();
+		System.exit(0);
+	}
+
+	void run() throws Exception {
+		PrintStream results = System.out;
+
+		// The coordinator reports every connection and message, which is not part of the measurement
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		Coordinator.threshold = 600;
+		Runnable engine;
+		if (System.getProperty("coordinator.engine", "blocking").equals("nio")) {
+			engine = new NioCoordinator(port, Integer.getInteger("coordinator.eventLoops", 2));
+		} else {
+			engine = new Coordinator(port);
+		}
+		Thread coordinator = new Thread(engine, "coordinator");
+		coordinator.setDaemon(true);
+		coordinator.start();
+		Thread.sleep(500);
+
+		msendServer = ServerSocketChannel.open();
+		msendServer.bind(new InetSocketAddress("127.0.0.1", 0));
+		byte[] address = Frame.address("127.0.0.1", msendServer.socket().getLocalPort());
+
+		for (int i = 0; i < participants; i++) {
+			Socket socket = connect(port);
+			request(socket, Frame.REGISTER, i + 1, address);
+			controlSockets.add(socket);
+		}
+		Socket sender = controlSockets.get(0);
+
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		// Replies are read on a thread of their own so that msends are pipelined
+		final DataInputStream replies = new DataInputStream(sender.getInputStream());
+		Thread replyReader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Frame reply = new Frame();
+				try {
+					for (int m = 0; m < messages; m++) {
+						reply.read(replies);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "replies");
+		replyReader.setDaemon(true);
+		replyReader.start();
+
+		long expected = (long) participants * messages;
+		byte[] payload = Frame.text("benchmark message of the ack benchmark, about as long as a chat line");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sender.getOutputStream(), 64 * 1024));
+		long start = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			Frame.write(dos, Frame.MSEND, 1, 0, payload);
+		}
+		dos.flush();
+		long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+		while (deliveries < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		long nanos = System.nanoTime() - start;
+
+		results.println("acks=" + acks + " participants=" + participants + " messages=" + messages + " deliveries="
+				+ deliveries + "/" + expected + " totalMs=" + nanos / 1000000 + " deliveries/s="
+				+ (long) (deliveries * 1e9 / nanos) + " ackFrames=" + ackFrames);
+	}
+
+	/*
+	 * Opens a control connection and switches it to the binary protocol
+	 */
+	private Socket connect(int port) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		DataInputStream dis = new DataInputStream(socket.getInputStream());
+		DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+		if (!dis.readUTF().equals(Coordinator.PARTICIPANT_CONN_ACCEPT)) {
+			throw new IOException("Connection refused by the coordinator");
+		}
+		dos.writeUTF(Frame.NEGOTIATE);
+		String response = dis.readUTF();
+		acks = response.equals(Frame.BINARY_ACCEPTED_ACKS);
+		if (!acks && !response.equals(Frame.BINARY_ACCEPTED)) {
+			throw new IOException("Binary protocol refused: " + response);
+		}
+		return socket;
+	}
+
+	private void request(Socket socket, byte opcode, int participantId, byte[] payload) throws IOException {
+		socket.getOutputStream().write(Frame.encode(opcode, participantId, 0, payload).array());
+		Frame reply = new Frame();
+		reply.read(new DataInputStream(socket.getInputStream()));
+	}
+
+	/*
+	 * Accepts the msend connections of all simulated participants, counts the
+	 * messages and acknowledges the last one after every read
+	 */
+	private void receive() {
+		Frame frame = new Frame();
+		ByteBuffer ack = ByteBuffer.allocate(4 + Frame.HEADER_SIZE);
+		try {
+			Selector selector = Selector.open();
+			msendServer.configureBlocking(false);
+			msendServer.register(selector, SelectionKey.OP_ACCEPT);
+			while (true) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isAcceptable()) {
+						SocketChannel channel = msendServer.accept();
+						if (channel != null) {
+							channel.configureBlocking(false);
+							channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(64 * 1024));
+						}
+					} else if (key.isReadable()) {
+						read(key, frame, ack);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void read(SelectionKey key, Frame frame, ByteBuffer ack) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		if (channel.read(buffer) < 0) {
+			key.cancel();
+			channel.close();
+			return;
+		}
+		buffer.flip();
+		long last = 0;
+		long count = 0;
+		while (frame.read(buffer)) {
+			last = frame.sequence;
+			count++;
+		}
+		buffer.compact();
+		deliveries += count;
+		if (acks && count > 0) {
+			ack.clear();
+			ack.putInt(Frame.HEADER_SIZE).put(Frame.VERSION).put(Frame.ACK).putInt(0).putLong(last).flip();
+			while (ack.hasRemaining()) {
+				channel.write(ack);
+			}
+			ackFrames++;
+		}
+	}
+}
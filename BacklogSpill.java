@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Memory budget of the message logs, set with coordinator.backlog.memoryMB.
+ * The messages of all groups are kept on the heap up to the budget. Beyond it
+ * the spiller moves the oldest full segments of the logs to memory-mapped files
+ * in coordinator.backlog.spillDir, a temporary directory unless set, where the
+ * backlogs of participants that stay offline are read back from on reconnect.
+ * The heap then holds about the budget and a few fields per spilled segment,
+ * however long participants stay offline within the threshold. Spill files are
+ * dropped with their segments when the log is trimmed or the messages expire;
+ * the write-ahead log, not the spill files, keeps the messages over a restart.
+ */
+class BacklogSpill implements Runnable {
+
+	static final long MEMORY_BUDGET = Long.getLong("coordinator.backlog.memoryMB", 0) * 1024 * 1024;
+
+	// Heap taken by a message besides its text and encodings: the MessageBean,
+	// the String, the buffers and the frame header
+	static final int MESSAGE_OVERHEAD = 128;
+
+	// How often the budget is checked without a segment filling up
+	static final long CHECK_INTERVAL_MS = 1000;
+
+	// Estimated heap taken by the messages of all logs that are not spilled
+	static final AtomicLong heapBytes = new AtomicLong();
+
+	private static volatile Thread spiller;
+	static volatile File directory;
+
+	/*
+	 * Starts the spiller when a budget is set
+	 */
+	static void start() throws IOException {
+		if (MEMORY_BUDGET <= 0) {
+			return;
+		}
+		String dir = System.getProperty("coordinator.backlog.spillDir");
+		File directory;
+		if (dir == null) {
+			directory = Files.createTempDirectory("coordinator-spill").toFile();
+			directory.deleteOnExit();
+		} else {
+			directory = new File(dir);
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create the spill directory " + directory);
+			}
+		}
+
+		// Left over by an earlier run, the messages are recovered from the write-ahead log
+		File[] stale = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.endsWith(".seg");
+			}
+		});
+		if (stale != null) {
+			for (File file : stale) {
+				file.delete();
+			}
+		}
+		BacklogSpill.directory = directory;
+		Thread thread = new Thread(new BacklogSpill(), "backlog-spill");
+		thread.setDaemon(true);
+		spiller = thread;
+		thread.start();
+		System.out.println("Backlogs beyond " + MEMORY_BUDGET / (1024 * 1024) + " MB spill to " + directory);
+	}
+
+	/*
+	 * Estimated heap taken by a message in the log: its text, at two bytes a
+	 * character, and the binary and text encodings MessageBean.encoded caches
+	 * once it is delivered, at about a byte a character each. They are counted
+	 * from the start so that the estimate is the same when the message leaves.
+	 */
+	static long footprint(MessageBean message) {
+		return 4L * message.getMessage().length() + MESSAGE_OVERHEAD;
+	}
+
+	/**
+	 * Called by a message log when a segment is full, wakes up the spiller when
+	 * the budget is exceeded. Does not block or allocate. Returns true when the
+	 * messages come in faster than the spiller writes them out and the heap
+	 * reached twice the budget, then the log spills a segment itself.
+	 */
+	static boolean segmentFilled() {
+		Thread thread = spiller;
+		if (thread == null) {
+			return false;
+		}
+		long heap = heapBytes.get();
+		if (heap > MEMORY_BUDGET) {
+			LockSupport.unpark(thread);
+		}
+		return heap > 2 * MEMORY_BUDGET;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS));
+			try {
+				spill();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Spills the oldest full segment of every group in turn until the heap is
+	 * within the budget or only segments being filled are left
+	 */
+	void spill() throws IOException {
+		while (heapBytes.get() > MEMORY_BUDGET) {
+			long freed = 0;
+			for (Group group : Group.all()) {
+				freed += group.messageLog.spillOldest(directory);
+				if (heapBytes.get() <= MEMORY_BUDGET) {
+					return;
+				}
+			}
+			if (freed == 0) {
+				return;
+			}
+		}
+	}
+}
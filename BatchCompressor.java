@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/*
+ * Compresses the batches an msend link writes to a participant that accepted
+ * compressed batches, see Frame. The MESSAGE frames of a batch, fan-out or
+ * replay from the message log alike, go out as one BATCH frame deflated with
+ * the fastest level unless set otherwise with coordinator.compression.level.
+ * Batches under coordinator.compression.minBytes, and batches that do not get
+ * smaller, are written as they are. Every link has a compressor of its own,
+ * the batches of the links differ.
+ */
+class BatchCompressor {
+
+	static final boolean ENABLED = Boolean.getBoolean("coordinator.compression");
+	static final int MIN_BYTES = Integer.getInteger("coordinator.compression.minBytes", 1024);
+	static final int LEVEL = Integer.getInteger("coordinator.compression.level", Deflater.BEST_SPEED);
+
+	private final Deflater deflater = new Deflater(LEVEL);
+
+	// The frames of the batch one after the other, and the BATCH payload
+	private byte[] frames = new byte[8192];
+	private byte[] payload = new byte[8192];
+
+	/**
+	 * Replaces the first count encoded frames by one BATCH frame when that is
+	 * worth it and returns the number of frames to write then. The shared
+	 * buffers of the frames are not moved, they are written as they are when
+	 * the batch stays uncompressed.
+	 */
+	int compress(ByteBuffer[] encoded, int count, long sequence) {
+		long length = 0;
+		for (int i = 0; i < count; i++) {
+			length += encoded[i].remaining();
+		}
+		// The length of the frames comes first in the payload
+		if (length < MIN_BYTES || length > Frame.MAX_PAYLOAD - 4) {
+			return count;
+		}
+		int rawLength = (int) length;
+		if (frames.length < rawLength) {
+			frames = new byte[Math.max(rawLength, frames.length * 2)];
+			payload = new byte[frames.length + 4];
+		}
+		int at = 0;
+		for (int i = 0; i < count; i++) {
+			ByteBuffer frame = encoded[i];
+			int position = frame.position();
+			int remaining = frame.remaining();
+			frame.get(frames, at, remaining);
+			frame.position(position);
+			at += remaining;
+		}
+
+		// Stops once the output is as long as the frames, it would not save anything
+		deflater.reset();
+		deflater.setInput(frames, 0, rawLength);
+		deflater.finish();
+		int limit = 4 + rawLength;
+		int payloadLength = 4;
+		while (!deflater.finished()) {
+			if (payloadLength == limit) {
+				return count;
+			}
+			payloadLength += deflater.deflate(payload, payloadLength, limit - payloadLength);
+		}
+		ByteBuffer.wrap(payload).putInt(rawLength);
+		encoded[0] = Frame.encode(Frame.BATCH, count, sequence, payload, payloadLength);
+		for (int i = 1; i < count; i++) {
+			encoded[i] = null;
+		}
+		Metrics.compressedBatches.increment();
+		Metrics.compressedBytes.add(rawLength);
+		Metrics.compressedWireBytes.add(encoded[0].remaining());
+		return 1;
+	}
+
+	/*
+	 * Frees the native memory of the deflater, the link is closed
+	 */
+	void end() {
+		deflater.end();
+	}
+}
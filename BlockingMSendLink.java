@@ -0,0 +1,280 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * msend link over a blocking channel, drained by a writer thread of its own.
+ * On a multiplexed control connection the writer writes its batches under the
+ * lock the worker's replies are written with, so they never cut a frame.
+ */
+class BlockingMSendLink implements MSendLink, Runnable {
+
+	// Time the writer gets to finish its write before a handoff interrupts it
+	static final long HANDOFF_TIMEOUT_MS = 5000;
+
+	Coordinator.MSendParticipant participant;
+	SocketChannel msendChannel;
+	Thread msendWriter;
+	Thread ackReader;
+	volatile boolean closed;
+
+	// Written by the writer instead of further messages, see handOff
+	volatile ByteBuffer handOffFrame;
+	ByteBuffer[] writes = new ByteBuffer[WRITE_BATCH];
+
+	// Null unless the participant accepted compressed batches
+	BatchCompressor compressor;
+
+	// Set instead of msendChannel when the participant multiplexed its control
+	// connection, which then reads the acknowledgements
+	CoordinatorWorker control;
+	OutputStream controlOut;
+	byte[] chunk;
+
+	BlockingMSendLink(Coordinator.MSendParticipant participant) throws IOException {
+		this(participant, null);
+	}
+
+	BlockingMSendLink(Coordinator.MSendParticipant participant, CoordinatorWorker control) throws IOException {
+		this.participant = participant;
+		this.control = control;
+		if (participant.compressed) {
+			compressor = new BatchCompressor();
+		}
+		if (control != null) {
+			// Not a channel, which an interrupt of the writer would close
+			controlOut = new BufferedOutputStream(control.socket.getOutputStream(), 65536);
+			chunk = new byte[8192];
+		} else {
+			msendChannel = SocketChannel.open(
+					new InetSocketAddress(participant.getParticipantIP(), participant.getMSendPort()));
+			if (COALESCE_DELAY > 0) {
+				// The coalescing delay replaces Nagle's algorithm as the bound on latency
+				msendChannel.socket().setTcpNoDelay(true);
+			}
+		}
+		msendWriter = Coordinator.threadMode.newThread(this, "msend-writer-" + participant.getParticipantID());
+		msendWriter.start();
+		if (participant.acked && control == null) {
+			ackReader = Coordinator.threadMode.newThread(new Runnable() {
+				@Override
+				public void run() {
+					readAcks();
+				}
+			}, "msend-acks-" + participant.getParticipantID());
+			ackReader.start();
+		}
+	}
+
+	@Override
+	public void enqueue(MessageBean message) {
+		if (!participant.outboundQueue.offer(message)) {
+			// The writer reads it from the log once it caught up, e.g. after the
+			// participant acknowledged what it has
+			participant.lagging = true;
+		}
+	}
+
+	/*
+	 * Writes queued messages to the participant. Everything that is already
+	 * waiting in the queue, or a batch of the backlog read from the log, goes
+	 * out in one gathering write of the messages' shared encoded buffers.
+	 */
+	@Override
+	public void run() {
+		List<MessageBean> batch = new ArrayList<MessageBean>();
+		try {
+			while (true) {
+				participant.awaitWindow();
+				if (handOffFrame != null) {
+					write(new ByteBuffer[] { handOffFrame }, 1);
+					return;
+				}
+				if (closed) {
+					return;
+				}
+				batch.clear();
+				participant.nextBatch(participant.hasBacklog() ? null : participant.outboundQueue.take(), WRITE_BATCH,
+						batch);
+				if (batch.isEmpty() || closed) {
+					continue;
+				}
+				if (COALESCE_DELAY > 0) {
+					coalesce(batch);
+				}
+				int count = 0;
+				for (MessageBean m : batch) {
+					ByteBuffer encoded = m.encoded(participant.binary);
+					if (encoded == null) {
+						System.out.println(MSendLink.TOO_LONG_FOR_TEXT + m.getSequence());
+						continue;
+					}
+					writes[count++] = encoded;
+				}
+				long sequence = batch.get(batch.size() - 1).getSequence();
+				if (compressor != null) {
+					count = compressor.compress(writes, count, sequence);
+				}
+				long start = System.nanoTime();
+				participant.writeStarted = start;
+				write(writes, count);
+				participant.recordWrite(System.nanoTime() - start);
+				participant.written(sequence);
+			}
+		} catch (InterruptedException e) {
+			// Connection is being closed
+		} catch (ClosedByInterruptException e) {
+			// Connection was closed while writing
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/*
+	 * Writes the first count buffers, nulling them out
+	 */
+	private void write(ByteBuffer[] buffers, int count) throws IOException {
+		if (control == null) {
+			int offset = 0;
+			while (offset < count) {
+				msendChannel.write(buffers, offset, count - offset);
+				while (offset < count && !buffers[offset].hasRemaining()) {
+					buffers[offset++] = null;
+				}
+			}
+			return;
+		}
+		synchronized (control.dos) {
+			for (int i = 0; i < count; i++) {
+				ByteBuffer buffer = buffers[i];
+				while (buffer.hasRemaining()) {
+					int length = Math.min(buffer.remaining(), chunk.length);
+					buffer.get(chunk, 0, length);
+					controlOut.write(chunk, 0, length);
+				}
+				buffers[i] = null;
+			}
+			controlOut.flush();
+		}
+	}
+
+	/*
+	 * Reads the participant's acknowledgements until the connection closes
+	 */
+	private void readAcks() {
+		Frame ack = new Frame();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(msendChannel)));
+			while (true) {
+				ack.read(in);
+				if (ack.opcode == Frame.ACK) {
+					participant.acknowledge(ack.sequence);
+				}
+			}
+		} catch (EOFException e) {
+			failed(null);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/*
+	 * The connection broke, cause is null when the participant closed it
+	 */
+	private void failed(IOException cause) {
+		if (closed) {
+			return;
+		}
+		participant.linkFailed(this, cause);
+		if (control != null) {
+			control.closeConnection();
+			return;
+		}
+		try {
+			msendChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		msendWriter.interrupt();
+	}
+
+	/*
+	 * Waits up to COALESCE_DELAY for more queued messages while the batch has
+	 * fewer than COALESCE_MAX
+	 */
+	private void coalesce(List<MessageBean> batch) throws InterruptedException {
+		long deadline = System.nanoTime() + COALESCE_DELAY;
+		while (batch.size() < COALESCE_MAX && !participant.hasBacklog()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return;
+			}
+			MessageBean m = participant.outboundQueue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (m == null) {
+				return;
+			}
+			participant.nextBatch(m, COALESCE_MAX, batch);
+		}
+	}
+
+	/*
+	 * The writer writes the frame once it is done with the current batch, so
+	 * the frame never cuts a message in two
+	 */
+	@Override
+	public void handOff(ByteBuffer frame) {
+		handOffFrame = frame;
+		closed = true;
+		// Wakes up the writer if it waits for the queue
+		participant.outboundQueue.offer(Coordinator.CATCH_UP);
+		try {
+			msendWriter.join(HANDOFF_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		close();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			if (control != null) {
+				// Not interrupted while it writes, a virtual thread would close the
+				// connection. It finishes its batch, unless the participant stopped
+				// reading, then the connection is dropped.
+				participant.outboundQueue.offer(Coordinator.CATCH_UP);
+				msendWriter.join(HANDOFF_TIMEOUT_MS);
+				if (msendWriter.isAlive()) {
+					control.closeConnection();
+				}
+			}
+			msendWriter.interrupt();
+			msendWriter.join();
+			if (msendChannel != null) {
+				msendChannel.close();
+			}
+			if (compressor != null) {
+				compressor.end();
+			}
+			if (ackReader != null) {
+				ackReader.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
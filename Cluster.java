@@ -0,0 +1,272 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Membership of this coordinator in a cluster of coordinator shards, set up
+ * with coordinator.cluster. Participants are placed on the shards by a
+ * consistent hash of their id, see ShardRing, and a shard only keeps its own
+ * participants and their backlogs. A participant that registers or reconnects
+ * on another shard is redirected to its owner.
+ *
+ * Every msend is logged and fanned out on the shard it was sent to and
+ * forwarded to all other shards, which log it in their own message log and fan
+ * it out to their own members. Messages keep the timestamp of the shard they
+ * were sent to. The order of messages from one sender is kept, messages of
+ * different shards may be interleaved differently on each shard.
+ *
+ * A shard that starts announces the list of shards to the others. Each shard
+ * then hands the participants that now belong to another shard over to it,
+ * together with the timestamp of the first message they did not get, so the
+ * new owner delivers them from its own log from there on.
+ */
+class Cluster {
+
+	// Frames waiting for a shard that is slow or not reachable
+	static final int PEER_QUEUE_CAPACITY = Integer.getInteger("coordinator.cluster.peerQueue", 65536);
+	static final long PEER_RETRY_MS = 1000;
+
+	// The new owner of a participant starts this much before the timestamp it
+	// was handed over with, as messages forwarded between shards are not logged
+	// in exactly the same order everywhere
+	static final long HANDOFF_OVERLAP_MS = Long.getLong("coordinator.cluster.handoffOverlapMs", 1000);
+
+	final InetSocketAddress self;
+	volatile ShardRing ring;
+	private final ConcurrentHashMap<InetSocketAddress, PeerLink> peers = new ConcurrentHashMap<InetSocketAddress, PeerLink>();
+
+	Cluster(InetSocketAddress self, ShardRing ring) {
+		this.self = self;
+		this.ring = ring;
+	}
+
+	/*
+	 * Creates the cluster configured by coordinator.cluster, or returns null
+	 * when the coordinator runs on its own
+	 */
+	static Cluster fromProperties(int port) {
+		String list = System.getProperty("coordinator.cluster");
+		if (list == null) {
+			return null;
+		}
+		ShardRing ring = ShardRing.parse(list);
+		InetSocketAddress self = ShardRing.address(System.getProperty("coordinator.cluster.self", "127.0.0.1:" + port));
+		if (!ring.contains(self)) {
+			throw new IllegalArgumentException("coordinator.cluster does not list this shard " + ShardRing.key(self));
+		}
+		return new Cluster(self, ring);
+	}
+
+	boolean owns(int participantId) {
+		return ring.ownerOf(participantId).equals(self);
+	}
+
+	/*
+	 * host:port of the shard the participant belongs to
+	 */
+	String ownerOf(int participantId) {
+		return ShardRing.key(ring.ownerOf(participantId));
+	}
+
+	/*
+	 * Tells the other shards that this one is there, they take over the list
+	 * of shards and hand over the participants that belong to this shard now
+	 */
+	void announce() {
+		broadcast(Frame.CLUSTER, 0, 0, Frame.text(ring.toString()));
+	}
+
+	/**
+	 * Takes over a list of shards received from another shard. When it adds
+	 * shards, the list is passed on so that every shard learns about them, and
+	 * the participants that belong to another shard now are handed over.
+	 */
+	void update(String list) {
+		ShardRing updated = ShardRing.parse(list);
+		synchronized (this) {
+			if (!updated.contains(self)
+					|| new HashSet<InetSocketAddress>(updated.shards()).equals(new HashSet<InetSocketAddress>(ring.shards()))) {
+				return;
+			}
+			ring = updated;
+		}
+		System.out.println("Cluster is now " + updated);
+		announce();
+		rebalance();
+	}
+
+	/*
+	 * Hands every member that belongs to another shard over to that shard
+	 */
+	void rebalance() {
+		int moved = 0;
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			if (!owns(p.getParticipantID())) {
+				try {
+					handOff(p);
+					moved++;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (moved > 0) {
+			System.out.println("Handed " + moved + " participants over to other shards");
+		}
+	}
+
+	/**
+	 * Moves a participant to the shard it belongs to. It is removed here, the
+	 * new owner registers it with its address, group and status. A participant
+	 * on the binary protocol that is ONLINE gets a HANDOFF frame on its msend
+	 * connection and then the connection of the new owner; on the text protocol
+	 * it is handed over OFFLINE and reconnects itself. So does a participant that
+	 * takes its messages on its control connection, after the HANDOFF frame.
+	 */
+	void handOff(Coordinator.MSendParticipant p) throws IOException {
+		InetSocketAddress owner = ring.ownerOf(p.getParticipantID());
+		boolean follows = p.getStatus() == ParticipantStatus.ONLINE && p.binary;
+		boolean dialed = follows && p.control == null;
+		p.setStatus(ParticipantStatus.NOT_MEMBER);
+		p.handOffMSendConn(follows ? Frame.encode(Frame.HANDOFF, p.getParticipantID(), 0, Frame.text(ShardRing.key(owner)))
+				: null);
+		Coordinator.participants.remove(p.getParticipantID());
+		p.group.members.remove(p.getParticipantID());
+		if (Coordinator.wal != null) {
+			Coordinator.wal.commit(Coordinator.wal.logDeregister(p.getParticipantID()));
+		}
+		peer(owner).send(Frame.encode(Frame.HANDOFF, p.getParticipantID(), p.nextTimestamp(),
+				Frame.handoff(dialed ? ParticipantStatus.ONLINE : ParticipantStatus.OFFLINE, p.binary,
+						p.compressed, p.getParticipantIP().getHostAddress(), p.getMSendPort(), p.group.name)));
+	}
+
+	/*
+	 * Sends a message multicast on this shard to all other shards
+	 */
+	void forward(Group group, MessageBean m) {
+		broadcast(Frame.FORWARD, m.getParticipantId(), m.getTimestamp(), Frame.forward(group.name, m.getMessage()));
+	}
+
+	private void broadcast(byte opcode, int participantId, long sequence, byte[] payload) {
+		ByteBuffer frame = Frame.encode(opcode, participantId, sequence, payload);
+		for (InetSocketAddress shard : ring.shards()) {
+			if (!shard.equals(self)) {
+				peer(shard).send(frame.duplicate());
+			}
+		}
+	}
+
+	private PeerLink peer(InetSocketAddress shard) {
+		PeerLink link = peers.get(shard);
+		if (link == null) {
+			PeerLink created = new PeerLink(shard);
+			link = peers.putIfAbsent(shard, created);
+			if (link == null) {
+				link = created;
+				created.start();
+			}
+		}
+		return link;
+	}
+
+	/*
+	 * Connection to the control port of another shard, on the binary protocol
+	 * and identified as a peer link.
+	 * Frames are queued and written by a thread of its own, which connects again
+	 * when the shard cannot be reached and keeps the frames meanwhile.
+	 */
+	static class PeerLink implements Runnable {
+
+		InetSocketAddress shard;
+		BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(PEER_QUEUE_CAPACITY);
+		long dropped;
+
+		PeerLink(InetSocketAddress shard) {
+			this.shard = shard;
+		}
+
+		void start() {
+			Thread thread = Coordinator.threadMode.newThread(this, "shard-" + ShardRing.key(shard));
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void send(ByteBuffer frame) {
+			if (!queue.offer(frame)) {
+				synchronized (this) {
+					if (dropped++ % 1000 == 0) {
+						System.out.println("Shard " + ShardRing.key(shard) + " is not keeping up, dropped " + dropped
+								+ " frames");
+					}
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer frame = null;
+			while (true) {
+				Socket socket = null;
+				try {
+					socket = connect();
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+					while (true) {
+						if (frame == null) {
+							frame = queue.take();
+						}
+						out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+						frame = queue.poll();
+						if (frame == null) {
+							out.flush();
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					System.out.println("Shard " + ShardRing.key(shard) + " not reachable (" + e.getMessage()
+							+ "), retrying");
+				} finally {
+					if (socket != null) {
+						try {
+							socket.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(PEER_RETRY_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private Socket connect() throws IOException {
+			Socket socket = new Socket(shard.getAddress(), shard.getPort());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			String accepted = in.readUTF();
+			if (!accepted.equals(Coordinator.PARTICIPANT_CONN_ACCEPT)) {
+				socket.close();
+				throw new IOException(accepted);
+			}
+			out.writeUTF(Frame.NEGOTIATE + " " + Frame.PEER);
+			String response = in.readUTF();
+			if (!response.startsWith(Frame.BINARY_ACCEPTED) || !response.endsWith(Frame.PEERED)) {
+				socket.close();
+				throw new IOException(response);
+			}
+			return socket;
+		}
+	}
+}
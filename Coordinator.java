@@ -6,31 +6,48 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-enum ParticipantStatus {
-	ONLINE, OFFLINE, NOT_MEMBER
-}
-
 public class Coordinator implements Runnable {
 
 	int portNo;
 	static long threshold;
 
 	int MAX_THREADS = 5;
-	ThreadPoolExecutor threadpool = (ThreadPoolExecutor) Executors.newFixedThreadPool(MAX_THREADS);
 
-	static Map<Integer, MSendParticipant> participantMap = new HashMap<Integer, MSendParticipant>();
+	// Platform threads from a pool of MAX_THREADS, or one virtual thread per participant
+	static ThreadMode threadMode = ThreadMode.fromProperty("coordinator.threads");
+	ExecutorService threadpool = threadMode.newWorkerPool(MAX_THREADS);
+
+	// Every participant by id, whatever its group, see Group for the members of
+	// each group
+	static ParticipantRegistry participants = new ParticipantRegistry(false);
+
+	// Write-ahead log of the coordinator state, null unless coordinator.wal.dir is set
+	static WriteAheadLog wal;
+
+	// Set when the coordinator runs on the NIO engine instead of the thread pool
+	static NioCoordinator nioCoordinator;
+
+	// Shards of the coordinator cluster, null unless coordinator.cluster is set
+	static Cluster cluster;
+
+	/*
+	 * Participants on the binary protocol acknowledge the messages they logged
+	 * and their cursor only moves on with the acknowledgements, so messages lost
+	 * with a broken connection are sent again on reconnect. Writing pauses once
+	 * ACK_WINDOW messages are waiting for their acknowledgement.
+	 */
+	static boolean acks = Boolean.parseBoolean(System.getProperty("coordinator.acks", "true"));
+	static final int ACK_WINDOW = Integer.getInteger("coordinator.ackWindow", 4096);
 	
 	public static final String COORDINATOR_WAIT_MSG = "Waiting for participants to connect";
 	public static final String PARTICIPANT_UNABLE_ACCEPT = "Coordinator cannot accept a new participant currently.Please check later";
@@ -44,7 +61,8 @@ public class Coordinator implements Runnable {
 	 * In the run method,we wait for a participant to connect. Once a participant is
 	 * connected, we check if there are threads available in thread pool to service
 	 * the participant. If threads are available, then a thread attends to
-	 * participant, else we terminate the participant connection
+	 * participant, else we terminate the participant connection. With virtual
+	 * threads every participant gets a thread of its own.
 	 */
 	@Override
 	public void run() {
@@ -53,6 +71,7 @@ public class Coordinator implements Runnable {
 		DataInputStream dis;
 		DataOutputStream dos;
 
+		Metrics.maxThreads = threadMode.isVirtual() ? 0 : MAX_THREADS;
 		try {
 			serverSocket = new ServerSocket(portNo);
 			serverSocket.setSoTimeout(10000000);
@@ -64,7 +83,8 @@ public class Coordinator implements Runnable {
 				dos = new DataOutputStream(socket.getOutputStream());
 
 				// Check if threads are available in thread pool
-				if (threadpool.getPoolSize() == MAX_THREADS) {
+				if (!threadMode.isVirtual() && ((ThreadPoolExecutor) threadpool).getPoolSize() == MAX_THREADS) {
+					Metrics.rejectedConnections.increment();
 					System.out.println(PARTICIPANT_UNABLE_ACCEPT);
 					dos.writeUTF(PARTICIPANT_UNABLE_ACCEPT);
 					dos.flush();
@@ -96,21 +116,81 @@ public class Coordinator implements Runnable {
 	 */
 	static class MSendParticipant {
 
+		// Number of multicast messages that can wait for a participant's writer
+		static final int OUTBOUND_QUEUE_CAPACITY = 1024;
+
 		private int participantId;
-		private InetAddress participantIP;
-		private int msendPort;
-		private ParticipantStatus status;
-		private DataInputStream msendDis;
-		private DataOutputStream msendDos;
-		Socket msendSocket;
-		LinkedList<MessageBean> messageList;
-
-		MSendParticipant(int participantId, InetAddress participantIP, int msendPort, ParticipantStatus status) {
+
+		// The group the participant is a member of and its message log
+		final Group group;
+		private final MessageLog messageLog;
+
+		private volatile InetAddress participantIP;
+		private volatile int msendPort;
+		private volatile ParticipantStatus status;
+		private volatile MSendLink msendLink;
+
+		// Sequence number of the last message delivered to the participant, i.e.
+		// written or, with acknowledgements, acknowledged
+		private volatile long cursor;
+
+		// Sequence number of the last message written to the participant
+		private volatile long writtenSequence;
+
+		// The participant acknowledges what it logged
+		volatile boolean acked;
+
+		// Sequence number of the last message handed to the msend link
+		private long batchedSequence;
+
+		// Set when the link has to read messages from the log that are not in the
+		// outbound queue: after it was opened, and when a message did not fit in
+		// the queue
+		volatile boolean lagging;
+
+		// Multicast messages are sent as binary frames rather than writeUTF strings
+		volatile boolean binary;
+
+		// Batches of binary frames are compressed, see BatchCompressor
+		volatile boolean compressed;
+
+		// The control connection the participant takes its messages on, null when
+		// the coordinator connects to its thread-B, see Frame.MULTIPLEXED
+		volatile CoordinatorWorker control;
+
+		// Queued message held back until the log messages before it are written
+		private MessageBean held;
+
+		// Set while the participant is too slow for the fan-out, see SlowConsumers.
+		// It is left out of its group's fan-out and its link reads its messages
+		// from the log at the pace it takes them, until it has caught up.
+		volatile boolean buffered;
+
+		// When the msend link started the write in progress, 0 while it is not writing
+		volatile long writeStarted;
+
+		// Messages waiting to be written to the participant by its msend link
+		BlockingQueue<MessageBean> outboundQueue = new ArrayBlockingQueue<MessageBean>(OUTBOUND_QUEUE_CAPACITY);
+
+		// Batches written by the msend links and how long they took, see Metrics
+		long writes;
+		long writeNanos;
+		long maxWriteNanos;
+
+		// Set by catchUp while the backlog up to replayTarget is being written
+		private volatile long replayStart;
+		private long replayTarget;
+		private long replayFrom;
+
+		MSendParticipant(int participantId, InetAddress participantIP, int msendPort, ParticipantStatus status,
+				Group group) {
 			this.participantId = participantId;
 			this.participantIP = participantIP;
 			this.msendPort = msendPort;
 			this.status = status;
-			messageList=new LinkedList<MessageBean>();
+			this.group = group;
+			this.messageLog = group.messageLog;
+			this.cursor = messageLog.lastSequence();
 		}
 
 		public int getParticipantID() {
@@ -142,280 +222,470 @@ public class Coordinator implements Runnable {
 		}
 
 		public void setStatus(ParticipantStatus status) {
-			this.status = status;
+			synchronized (this) {
+				this.status = status;
+				notifyAll();
+			}
+			group.members.statusChanged(this);
 		}
 
-		public DataInputStream getMSendDis() {
-			return msendDis;
+		public long getCursor() {
+			return cursor;
 		}
 
-		public DataOutputStream getMSendDos() {
-			return msendDos;
+		public void setCursor(long cursor) {
+			this.cursor = cursor;
 		}
 
-		public void createMSendConn() {
-			try {
-				msendSocket = new Socket(participantIP, msendPort);
-				msendDis = new DataInputStream(msendSocket.getInputStream());
-				msendDos = new DataOutputStream(msendSocket.getOutputStream());
-			} catch (IOException e) {
-				e.printStackTrace();
+		/*
+		 * Called by the msend link once the messages up to sequence are written
+		 */
+		void written(long sequence) {
+			writtenSequence = sequence;
+			if (!acked) {
+				cursor = sequence;
 			}
-		}
-
-		public void closeMSendConn() {
-			try {
-				msendDis.close();
-				msendDos.close();
-				msendSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (replayStart != 0 && sequence >= replayTarget) {
+				replayed();
 			}
 		}
-	}
 
-	public static void main(String[] args) {
-		try {
-			List<Integer> configList = new ArrayList<Integer>();
-			String cConfigFile = args[0];
+		/*
+		 * Called by the msend link with the time it took to write a batch
+		 */
+		void recordWrite(long nanos) {
+			writeStarted = 0;
+			writes++;
+			writeNanos += nanos;
+			maxWriteNanos = Math.max(maxWriteNanos, nanos);
+			Metrics.write.record(nanos);
+		}
 
-			// Read the input file
-			Scanner scanner = new Scanner(new File(cConfigFile));
-			while (scanner.hasNextLine()) {
-				configList.add(Integer.parseInt(scanner.nextLine()));
+		private synchronized void replayed() {
+			if (replayStart == 0) {
+				return;
 			}
+			Metrics.replay.record(System.nanoTime() - replayStart);
+			Metrics.replayedMessages.add(replayTarget - replayFrom);
+			replayStart = 0;
+		}
 
-			// Create coordinator object
-			Coordinator coordinator = new Coordinator(configList.get(0));
-			Coordinator.threshold=configList.get(1);
-			
-			// Pass the runnable to thread
-			Thread thread = new Thread(coordinator);
-			thread.start();
+		/*
+		 * Cumulative acknowledgement of the messages up to sequence
+		 */
+		synchronized void acknowledge(long sequence) {
+			if (sequence > cursor && sequence <= writtenSequence) {
+				cursor = sequence;
+				notifyAll();
+			}
+		}
 
-		} catch (FileNotFoundException fne) {
-			fne.printStackTrace();
+		/*
+		 * Acknowledgement that came on the control connection. The link is woken
+		 * up when it frees the window, like by catchUp.
+		 */
+		void acknowledged(long sequence) {
+			boolean windowFull = windowFull();
+			acknowledge(sequence);
+			MSendLink link = msendLink;
+			if (windowFull && !windowFull() && link != null) {
+				try {
+					link.enqueue(CATCH_UP);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
 		}
-	}
-}
 
-/*
- * This class contains message information
- */
-class MessageBean {
+		/*
+		 * True when ACK_WINDOW messages are written but not acknowledged yet
+		 */
+		boolean windowFull() {
+			return acked && writtenSequence - cursor >= ACK_WINDOW;
+		}
 
-	private int participantId;
-	private String message;
-	private long timestamp;
+		/*
+		 * Waits until the window has room again or the participant is no longer
+		 * ONLINE
+		 */
+		void awaitWindow() throws InterruptedException {
+			if (!windowFull()) {
+				return;
+			}
+			synchronized (this) {
+				while (windowFull() && status == ParticipantStatus.ONLINE) {
+					wait();
+				}
+			}
+		}
 
-	MessageBean(int participantId, String message) {
-		this.participantId = participantId;
-		this.message = message;
-		this.timestamp = System.currentTimeMillis();
-	}
+		/**
+		 * Called when the msend connection broke. The participant is taken
+		 * OFFLINE so that the fan-out stops queueing for it; everything after its
+		 * cursor stays in the message log and is sent again when it reconnects.
+		 */
+		boolean linkFailed(MSendLink link, IOException cause) {
+			synchronized (this) {
+				if (msendLink != link || status != ParticipantStatus.ONLINE) {
+					return false;
+				}
+				status = ParticipantStatus.OFFLINE;
+				notifyAll();
+			}
+			group.members.statusChanged(this);
+			if (cause != null) {
+				System.out.println("msend connection to participant " + participantId + " lost (" + cause.getMessage()
+						+ "), messages after " + cursor + " are sent again on reconnect");
+			}
+			return true;
+		}
 
-	public int getParticipantId() {
-		return participantId;
-	}
+		/*
+		 * True while the fan-out hands the participant its messages
+		 */
+		boolean inFanOut() {
+			return status == ParticipantStatus.ONLINE && !buffered;
+		}
 
-	public void setParticipantId(int participantId) {
-		this.participantId = participantId;
-	}
+		/**
+		 * Takes a participant that does not keep up out of the fan-out. Its
+		 * messages stay in the message log, where its msend link reads them as
+		 * fast as the participant takes them, so multicasts to the group no longer
+		 * queue for it. The link is busy when this happens, writing or waiting for
+		 * acknowledgements, and sees the flag with its next batch.
+		 */
+		void demote(String reason) {
+			synchronized (this) {
+				if (buffered || status != ParticipantStatus.ONLINE) {
+					return;
+				}
+				buffered = true;
+			}
+			group.members.statusChanged(this);
+			Metrics.demotions.increment();
+			System.out.println("Participant " + participantId + " is too slow (" + reason
+					+ "), its messages are sent from its backlog until it catches up");
+		}
 
-	public String getMessage() {
-		return message;
-	}
+		/*
+		 * Puts the participant back into the fan-out once its link has caught up
+		 * to SlowConsumers.LOW_WATER messages. Called by the msend link only.
+		 */
+		private void promote() {
+			synchronized (this) {
+				if (!buffered) {
+					return;
+				}
+				buffered = false;
+			}
+			// Messages multicast before it is back in the snapshot are read from the log
+			lagging = true;
+			group.members.statusChanged(this);
+			Metrics.promotions.increment();
+			System.out.println("Participant " + participantId + " caught up and gets multicast messages again");
+		}
 
-	public void setMessage(String message) {
-		this.message = message;
-	}
+		/*
+		 * Drops the msend connection of a participant that took nothing for
+		 * SlowConsumers.DROP_MS, like a broken connection. Returns false when the
+		 * connection was closed or replaced meanwhile.
+		 */
+		boolean writeTimedOut(long stalledMs) {
+			MSendLink link = msendLink;
+			if (link == null || !linkFailed(link, new IOException("nothing written for " + stalledMs + " ms"))) {
+				return false;
+			}
+			writeStarted = 0;
+			// Messages on the control connection end with it, so the participant notices
+			CoordinatorWorker connection = control;
+			if (connection != null) {
+				connection.closeConnection();
+			}
+			link.close();
+			return true;
+		}
 
-	public long getTimestamp() {
-		return timestamp;
-	}
+		/*
+		 * The control connection the participant took its messages on closed,
+		 * which is the end of its msend link like a broken connection
+		 */
+		void controlClosed(CoordinatorWorker connection, IOException cause) {
+			MSendLink link = msendLink;
+			if (control == connection && link != null && linkFailed(link, cause)) {
+				link.close();
+			}
+		}
 
-	public void setTimestamp(long timestamp) {
-		this.timestamp = timestamp;
-	}
-}
+		/*
+		 * Connects to the port where the participant's thread-B waits for multicast
+		 * messages, using the networking engine the coordinator was started with,
+		 * or writes them to its control connection when it is multiplexed
+		 */
+		public void createMSendConn() {
+			try {
+				closeMSendConn();
+				batchedSequence = cursor;
+				writtenSequence = cursor;
+				held = null;
+				buffered = false;
+				writeStarted = 0;
+				if (control != null) {
+					msendLink = control.openMuxLink(this);
+				} else if (Coordinator.nioCoordinator != null) {
+					msendLink = Coordinator.nioCoordinator.openMSendLink(this);
+				} else {
+					msendLink = new BlockingMSendLink(this);
+				}
+				catchUp();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 
-/*
- * This class is responsible for servicing each participant. A new instance of
- * this class is created for each Participant.
- */
-class CoordinatorWorker implements Runnable {
+		/*
+		 * Makes link the participant's msend link instead of a connection to it,
+		 * CoordinatorBenchmark delivers into memory this way
+		 */
+		void attachMSendLink(MSendLink link) {
+			closeMSendConn();
+			batchedSequence = cursor;
+			writtenSequence = cursor;
+			held = null;
+			buffered = false;
+			writeStarted = 0;
+			msendLink = link;
+		}
 
-	Socket socket;
-	DataInputStream dis;
-	DataOutputStream dos;
+		/**
+		 * Makes the msend link write everything in the message log after the
+		 * cursor. The link streams it in batches on its own thread and then goes on
+		 * with the outbound queue, skipping the messages it already wrote, so the
+		 * caller does not wait for the backlog.
+		 */
+		public void catchUp() throws InterruptedException {
+			synchronized (this) {
+				long last = messageLog.lastSequence();
+				if (replayStart == 0 && last > cursor) {
+					replayFrom = cursor;
+					replayTarget = last;
+					replayStart = System.nanoTime();
+				}
+			}
+			lagging = true;
+			MSendLink link = msendLink;
+			if (link != null) {
+				// Wakes up a link that waits for the queue, it is skipped as already written
+				link.enqueue(CATCH_UP);
+			}
+		}
 
-	int participantId;
-	InetAddress participantIP;
-	int msendPort;
-	
-	public static final String PARTICIPANT_REGISTER_NOTIFICATION = "Participant is added to the multicast group";
-	public static final String PARTICIPANT_REGISTER_ERROR = "Participant with same id already exists";
-	public static final String PARTICIPANT_DEREGISTER_NOTIFICATION = "Participant is removed from multicast group";
-	public static final String PARTICIPANT_DEREGISTER_ERROR = "Participant is not registered.Please check";
-	public static final String PARTICIPANT_DISCONNECT_NOTIFICATION = "Participant is disconnected and will receive messages when it comes online";
-	public static final String PARTICIPANT_DISCONNECT_ERROR = "Participant is not registered.Please check";
-	public static final String PARTICIPANT_RECONNECT_NOTIFICATION = "Participant is reconnected and will be receiving messages sent within threshold";
-	public static final String PARTICIPANT_MSEND_NOTIFICATION = "Multicast message is received by coordinator and will be send to all the participants";
-
-	CoordinatorWorker(Socket socket, DataInputStream dis, DataOutputStream dos) {
-		this.socket = socket;
-		this.dis = dis;
-		this.dos = dos;
-	}
+		/**
+		 * Stops the msend link and closes the connection. Messages the link did not
+		 * get to stay in the message log after the cursor, so they are delivered on
+		 * reconnect.
+		 */
+		public void closeMSendConn() {
+			if (msendLink == null) {
+				return;
+			}
+			msendLink.close();
+			msendLink = null;
+			outboundQueue.clear();
+		}
 
-	@Override
-	public void run() {
-		String input;
-		try {
-			while (true) {
-				input = dis.readUTF();
-				String command[] = input.split(" ");
-				switch (command[0]) {
-				case "register":
-					register(command);
-					break;
-				case "deregister":
-					deregister();
-					break;
-				case "disconnect":
-					disconnect();
-					break;
-				case "reconnect":
-					reconnect(command);
-					break;
-				case "msend":
-					msend(input);
-					break;
-				default:
-					System.out.println("Invalid input");
-					dos.writeUTF("Invalid input");
-					dos.flush();
-					break;
-				}
+		/**
+		 * Ends the msend connection of a participant that moves to another shard
+		 * of the cluster. With a frame, the link writes what it has in hand, then
+		 * the frame, which tells the participant to wait for the connection of the
+		 * new shard, and closes; without one it closes right away.
+		 */
+		void handOffMSendConn(ByteBuffer frame) {
+			if (frame == null || msendLink == null) {
+				closeMSendConn();
+				return;
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			msendLink.handOff(frame);
+			msendLink = null;
+			outboundQueue.clear();
 		}
-	}
 
-	private void register(String[] command) {
-		try {
-			String participantInfo = command[1];
-
-			/*
-			 * Info is in the order of participantId, participantId IP and port number where
-			 * its thread-B will receive multicast messages
-			 */
-			String[] info = participantInfo.split(",");
-			participantId = Integer.parseInt(info[0]);
-			participantIP = InetAddress.getByName(info[1]);
-			msendPort = Integer.parseInt(info[2]);
-
-			if(!Coordinator.participantMap.keySet().contains(participantId)) {
-				dos.writeUTF(PARTICIPANT_REGISTER_NOTIFICATION);
-				dos.flush();
-				Coordinator.MSendParticipant p = new Coordinator.MSendParticipant(participantId, participantIP, msendPort,
-						ParticipantStatus.ONLINE);
-				p.createMSendConn();
-				Coordinator.participantMap.put(participantId, p);
-				System.out.println("Ready to send messages to participant :" + participantId);
-			}else {
-				dos.writeUTF(PARTICIPANT_REGISTER_ERROR);
-				dos.flush();
-				System.out.println("Participant with same id already exists");
-			}	
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		/*
+		 * Timestamp of the first message in the log the participant did not get,
+		 * or now when it got everything
+		 */
+		long nextTimestamp() {
+			List<MessageBean> next = new ArrayList<MessageBean>(1);
+			messageLog.read(cursor + 1, messageLog.lastSequence(), 1, next);
+			return next.isEmpty() ? System.currentTimeMillis() : next.get(0).getTimestamp();
 		}
-	}
 
-	private void deregister() {
-		try {
-			Coordinator.MSendParticipant p = Coordinator.participantMap.get(participantId);
-			p.setStatus(ParticipantStatus.NOT_MEMBER);
-			p.closeMSendConn();
-			Coordinator.participantMap.remove(this.participantId);
-			System.out.println(PARTICIPANT_DEREGISTER_NOTIFICATION);
-			dos.writeUTF(PARTICIPANT_DEREGISTER_NOTIFICATION);
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+		/**
+		 * Hands a multicast message to the participant's msend link. It does not
+		 * block: once OUTBOUND_QUEUE_CAPACITY messages are waiting the participant
+		 * is lagging and the link reads the rest from the message log. A
+		 * participant more than SlowConsumers.HIGH_WATER messages behind is taken
+		 * out of the fan-out.
+		 */
+		public void enqueue(MessageBean message) throws InterruptedException {
+			MSendLink link = msendLink;
+			if (link == null) {
+				// The link being opened reads the message from the log
+				lagging = true;
+				return;
+			}
+			if (message.getSequence() - writtenSequence > SlowConsumers.HIGH_WATER) {
+				demote("high-water mark");
+				return;
+			}
+			link.enqueue(message);
 		}
-	}
 
-	private void disconnect() {
-		try {
-			Coordinator.MSendParticipant p = Coordinator.participantMap.get(participantId);
-			p.setStatus(ParticipantStatus.OFFLINE);
-			p.closeMSendConn();
-			System.out.println(PARTICIPANT_DISCONNECT_NOTIFICATION);
-			dos.writeUTF(PARTICIPANT_DISCONNECT_NOTIFICATION);
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+		/**
+		 * Collects at most max messages the msend link writes next, in sequence
+		 * order, starting with head and continuing with what is waiting in the
+		 * outbound queue. Messages that were already handed to the link are
+		 * skipped, and messages that never made it to the queue are read from the
+		 * message log. Called by the msend link only.
+		 */
+		void nextBatch(MessageBean head, int max, List<MessageBean> batch) {
+			MessageBean m = head;
+			if (m == null) {
+				m = held != null ? held : outboundQueue.poll();
+				held = null;
+			}
+			while (m != null) {
+				if (m.getSequence() > batchedSequence) {
+					if (m.getSequence() > batchedSequence + 1 && batch.size() < max) {
+						batchedSequence = readLog(batchedSequence + 1, m.getSequence() - 1, max - batch.size(), batch);
+					}
+					if (m.getSequence() > batchedSequence + 1 || batch.size() >= max) {
+						held = m;
+						return;
+					}
+					batch.add(m);
+					batchedSequence = m.getSequence();
+				}
+				if (batch.size() >= max) {
+					return;
+				}
+				m = outboundQueue.poll();
+			}
+			if (lagging || buffered) {
+				// Cleared before the log is read, so a later request is never lost
+				lagging = false;
+				long last = messageLog.lastSequence();
+				if (last > batchedSequence) {
+					batchedSequence = readLog(batchedSequence + 1, last, max - batch.size(), batch);
+					lagging = batchedSequence < last;
+				}
+				if (buffered && last - batchedSequence <= SlowConsumers.LOW_WATER) {
+					promote();
+				}
+			}
 		}
-	}
 
-	private void reconnect(String[] command) {
-		try {
-			String participantInfo = command[1];
-
-			/*
-			 * Info is in the order of participantId IP and port number where its thread-B
-			 * will receive multicast messages
-			 */
-			String[] info = participantInfo.split(",");
-			participantIP = InetAddress.getByName(info[0]);
-			msendPort = Integer.parseInt(info[1]);
-
-			Coordinator.MSendParticipant p = Coordinator.participantMap.get(participantId);
-			p.setParticipantIP(participantIP);
-			p.setMSendPort(msendPort);
-			p.createMSendConn();
-			p.setStatus(ParticipantStatus.ONLINE);
-			dos.writeUTF(PARTICIPANT_RECONNECT_NOTIFICATION);
-			dos.flush();
-			
-			while(!p.messageList.isEmpty()){
-				MessageBean m = p.messageList.poll();
-				if((System.currentTimeMillis() - m.getTimestamp())/1000 <= Coordinator.threshold){
-					DataOutputStream msendDos = p.getMSendDos();
-					msendDos.writeUTF(m.getMessage());
-					msendDos.flush();
+		/*
+		 * True when the link has messages to write without waiting for the queue
+		 */
+		boolean hasBacklog() {
+			return lagging || held != null || buffered;
+		}
+
+		/*
+		 * Range read of the message log, leaving out messages past the threshold.
+		 * Returns the sequence number up to which the log was read.
+		 */
+		private long readLog(long fromSequence, long toSequence, int max, List<MessageBean> batch) {
+			List<MessageBean> range = new ArrayList<MessageBean>();
+			long now = System.currentTimeMillis();
+			fromSequence = Math.max(fromSequence, messageLog.seek(MessageExpiry.cutoff(now)));
+			if (fromSequence > toSequence) {
+				return toSequence;
+			}
+			messageLog.read(fromSequence, toSequence, max, range);
+			for (MessageBean m : range) {
+				if ((now - m.getTimestamp()) / 1000 <= threshold) {
+					batch.add(m);
+				} else {
+					Metrics.skippedExpired.increment();
 				}
 			}
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return range.size() < max ? toSequence : range.get(range.size() - 1).getSequence();
 		}
 	}
 
-	private void msend(String cmdStr) {
-		String message = cmdStr.substring(6);
+	// Queue entry that only wakes up the msend link, see catchUp
+	static final MessageBean CATCH_UP = new MessageBean(0, "");
+
+	public static void main(String[] args) {
 		try {
-			dos.writeUTF(PARTICIPANT_MSEND_NOTIFICATION);
-			dos.flush();
-			for (int pid : Coordinator.participantMap.keySet()) {
-				Coordinator.MSendParticipant p = Coordinator.participantMap.get(pid);
-				if (p.getStatus() == ParticipantStatus.ONLINE) {
-					DataOutputStream msendDos = p.getMSendDos();
-					msendDos.writeUTF(message);
-					msendDos.flush();
-				} else if (p.getStatus() == ParticipantStatus.OFFLINE) {
-					MessageBean msgObj = new MessageBean(pid, message);
-					p.messageList.add(msgObj);
-				}
+			List<Integer> configList = new ArrayList<Integer>();
+			String cConfigFile = args[0];
+
+			// Read the input file
+			Scanner scanner = new Scanner(new File(cConfigFile));
+			while (scanner.hasNextLine()) {
+				configList.add(Integer.parseInt(scanner.nextLine()));
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+
+			// Create coordinator object for the selected networking engine
+			Runnable coordinator;
+			String engine = System.getProperty("coordinator.engine", "blocking");
+			if (engine.equals("nio")) {
+				int eventLoops = Integer.getInteger("coordinator.eventLoops",
+						Math.min(4, Runtime.getRuntime().availableProcessors()));
+				coordinator = new NioCoordinator(configList.get(0), eventLoops);
+			} else {
+				coordinator = new Coordinator(configList.get(0));
+			}
+			Coordinator.threshold=configList.get(1);
+
+			// Evict messages past the threshold even for participants that stay
+			// offline, and keep backlogs beyond the memory budget in spill files. Both
+			// run while a standby follows its primary, whose history would fill the
+			// heap otherwise.
+			MessageExpiry.start();
+			BacklogSpill.start();
+
+			// Rebuild participants and pending messages logged before a restart, or
+			// follow the primary as its standby until it fails
+			wal = WriteAheadLog.fromProperties();
+			Standby standby = Standby.fromProperties(wal);
+			if (standby != null) {
+				standby.follow();
+				standby.takeOver(wal);
+			} else if (wal != null) {
+				wal.open();
+			}
+
+			// Ship the write-ahead log to standby coordinators
+			LogShipper.start(wal);
+
+			// Queue depths, latencies and replay progress over JMX and HTTP
+			Metrics.start();
+
+			// Take participants that stop reading out of the fan-out
+			SlowConsumers.start();
+
+			// Join the other shards and hand over recovered participants that are theirs
+			cluster = Cluster.fromProperties(configList.get(0));
+			if (cluster != null) {
+				cluster.announce();
+				cluster.rebalance();
+			}
+
+			// Pass the runnable to thread
+			Thread thread = new Thread(coordinator);
+			thread.start();
+
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (FileNotFoundException fne) {
+			fne.printStackTrace();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,680 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+/*
+ * Microbenchmarks of the hot paths of coordinator and participant, run in
+ * this JVM without sockets so that only the code itself is measured:
+ *
+ * fanout    msend through CoordinatorWorker.handle to a group of 1 to 10000
+ *           ONLINE members whose msend links deliver into memory
+ * replay    catch up of a participant over a backlog of the message log in
+ *           which every other message is past the threshold
+ * parse     the command loop of CoordinatorWorker.run over msend commands on
+ *           the text and the binary protocol
+ * logappend thread-B's appends to the message log, committed in batches
+ * compress  an msend link's compression of batches of chat-like text and of
+ *           random characters, with the share of the bytes it saves
+ * inflate   thread-B's reading of the messages of a compressed batch
+ *
+ * Every case is warmed up and then measured in timed iterations, the mean and
+ * the standard deviation of the iterations are reported. Results can be saved
+ * and later runs compared with them, a case that got slower by more than the
+ * tolerance is reported as a regression and fails the run.
+ *
+ * java -Xms1g -Xmx1g CoordinatorBenchmark [case ...]
+ * java -Dbenchmark.save=baseline.txt CoordinatorBenchmark
+ * java -Dbenchmark.baseline=baseline.txt CoordinatorBenchmark fanout
+ */
+public class CoordinatorBenchmark {
+
+	static final int WARMUP_ITERATIONS = Integer.getInteger("benchmark.warmup", 3);
+	static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 5);
+	static final long ITERATION_MS = Long.getLong("benchmark.iterationMs", 1000);
+	static final double TOLERANCE_PERCENT = Double.parseDouble(System.getProperty("benchmark.tolerance", "5"));
+
+	static final int[] GROUP_SIZES = { 1, 10, 100, 1000, 10000 };
+	static final int[] BACKLOGS = { 10000, 100000 };
+	static final int COMMANDS = 10000;
+	static final String MESSAGE = "benchmark message of the coordinator benchmark, about as long as a chat line";
+	static final int[] COMPRESSED_BATCHES = { 1, 16, 1024 };
+	static final int COMPRESSED_MESSAGE_SIZE = 256;
+
+	// Participant ids of the groups of the fanout and replay cases, apart from each other
+	static final int IDS_PER_CASE = 100000;
+
+	static PrintStream results = System.out;
+
+	/*
+	 * A measured operation. Every call of operation does some units of work,
+	 * e.g. delivers a message to every member of a group, and returns how many.
+	 */
+	abstract static class Case {
+
+		final String name;
+		final String unit;
+
+		Case(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void setUp() throws Exception {
+		}
+
+		abstract long operation() throws Exception;
+
+		// Called after every iteration, outside the measured time
+		void iterationDone() throws Exception {
+		}
+
+		// Appended to the result, null for nothing
+		String detail(double rate) {
+			return null;
+		}
+
+		void tearDown() throws Exception {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		// The coordinator reports connections and messages, which is not part of the measurement
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		Coordinator.threshold = 600;
+
+		List<Case> cases = new ArrayList<Case>();
+		int nextId = 1;
+		for (int size : GROUP_SIZES) {
+			cases.add(new FanOut(size, nextId));
+			nextId += IDS_PER_CASE;
+		}
+		for (int backlog : BACKLOGS) {
+			cases.add(new Replay(backlog, nextId));
+			nextId += IDS_PER_CASE;
+		}
+		cases.add(new Parse(false));
+		cases.add(new Parse(true));
+		cases.add(new LogAppend());
+		for (int size : COMPRESSED_BATCHES) {
+			cases.add(new Compress(true, size));
+		}
+		cases.add(new Compress(false, MSendLink.WRITE_BATCH));
+		cases.add(new Inflate(true, MSendLink.WRITE_BATCH));
+		cases.add(new Inflate(false, MSendLink.WRITE_BATCH));
+
+		Map<String, Double> baseline = load(System.getProperty("benchmark.baseline"));
+		Map<String, Double> measured = new HashMap<String, Double>();
+		int regressions = 0;
+		results.println("warmup=" + WARMUP_ITERATIONS + " iterations=" + ITERATIONS + " iterationMs=" + ITERATION_MS
+				+ " java=" + System.getProperty("java.version"));
+		for (Case c : cases) {
+			if (!selected(c, args)) {
+				continue;
+			}
+			double[] rates = measure(c);
+			double mean = mean(rates);
+			double deviation = deviation(rates, mean);
+			measured.put(c.name, mean);
+			StringBuilder line = new StringBuilder(String.format("%-28s %14.0f %s/s +- %4.1f%%", c.name, mean, c.unit,
+					100 * deviation / mean));
+			Double before = baseline.get(c.name);
+			if (before != null) {
+				double change = 100 * (mean - before) / before;
+				line.append(String.format("  baseline %14.0f  %+6.1f%%", before, change));
+				if (change < -TOLERANCE_PERCENT) {
+					line.append("  REGRESSION");
+					regressions++;
+				}
+			}
+			String detail = c.detail(mean);
+			if (detail != null) {
+				line.append("  ").append(detail);
+			}
+			results.println(line);
+		}
+		save(System.getProperty("benchmark.save"), measured);
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+	/*
+	 * Cases are picked by the beginning of their name, all when none is given
+	 */
+	static boolean selected(Case c, String[] args) {
+		if (args.length == 0) {
+			return true;
+		}
+		for (String prefix : args) {
+			if (c.name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Units per second of every measured iteration
+	 */
+	static double[] measure(Case c) throws Exception {
+		c.setUp();
+		try {
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				iteration(c);
+			}
+			double[] rates = new double[ITERATIONS];
+			for (int i = 0; i < ITERATIONS; i++) {
+				rates[i] = iteration(c);
+			}
+			return rates;
+		} finally {
+			c.tearDown();
+		}
+	}
+
+	static double iteration(Case c) throws Exception {
+		System.gc();
+		long units = 0;
+		long start = System.nanoTime();
+		long end = start + ITERATION_MS * 1000000;
+		long now;
+		do {
+			units += c.operation();
+			now = System.nanoTime();
+		} while (now < end);
+		c.iterationDone();
+		return units * 1e9 / (now - start);
+	}
+
+	static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) {
+			sum += v;
+		}
+		return sum / values.length;
+	}
+
+	static double deviation(double[] values, double mean) {
+		if (values.length < 2) {
+			return 0;
+		}
+		double sum = 0;
+		for (double v : values) {
+			sum += (v - mean) * (v - mean);
+		}
+		return Math.sqrt(sum / (values.length - 1));
+	}
+
+	/*
+	 * Results are saved as one line per case: the name, a tab and the mean
+	 */
+	static Map<String, Double> load(String fileName) throws IOException {
+		Map<String, Double> saved = new HashMap<String, Double>();
+		if (fileName == null) {
+			return saved;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if (tab > 0) {
+					saved.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return saved;
+	}
+
+	static void save(String fileName, Map<String, Double> measured) throws IOException {
+		if (fileName == null) {
+			return;
+		}
+		PrintWriter writer = new PrintWriter(new FileWriter(fileName));
+		try {
+			for (Map.Entry<String, Double> entry : measured.entrySet()) {
+				writer.println(entry.getKey() + "\t" + entry.getValue());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/*
+	 * Registers size ONLINE members in a group of their own, each with a sink
+	 * as its msend link
+	 */
+	static List<Coordinator.MSendParticipant> members(Group group, int firstId, int size, boolean binary)
+			throws IOException {
+		List<Coordinator.MSendParticipant> members = new ArrayList<Coordinator.MSendParticipant>();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		for (int i = 0; i < size; i++) {
+			Coordinator.MSendParticipant p = new Coordinator.MSendParticipant(firstId + i, loopback, 0,
+					ParticipantStatus.ONLINE, group);
+			p.binary = binary;
+			p.attachMSendLink(new Sink(p));
+			Coordinator.participants.add(p);
+			group.members.add(p);
+			members.add(p);
+		}
+		return members;
+	}
+
+	static void remove(List<Coordinator.MSendParticipant> members) {
+		for (Coordinator.MSendParticipant p : members) {
+			Coordinator.participants.remove(p.getParticipantID());
+			p.group.members.remove(p.getParticipantID());
+		}
+	}
+
+	/*
+	 * msend link that delivers right away on the calling thread: it takes the
+	 * batches the way the msend links do, encodes every message and moves the
+	 * cursor, but writes nowhere
+	 */
+	static class Sink implements MSendLink {
+
+		Coordinator.MSendParticipant participant;
+		List<MessageBean> batch = new ArrayList<MessageBean>(WRITE_BATCH);
+		long delivered;
+		long bytes;
+
+		Sink(Coordinator.MSendParticipant participant) {
+			this.participant = participant;
+		}
+
+		@Override
+		public void enqueue(MessageBean message) {
+			if (!participant.outboundQueue.offer(message)) {
+				participant.lagging = true;
+			}
+			drain();
+		}
+
+		/*
+		 * Delivers everything the participant has waiting, in the queue and in
+		 * the message log
+		 */
+		void drain() {
+			try {
+				while (true) {
+					batch.clear();
+					participant.nextBatch(null, WRITE_BATCH, batch);
+					if (batch.isEmpty()) {
+						return;
+					}
+					for (MessageBean m : batch) {
+						ByteBuffer encoded = m.encoded(participant.binary);
+						bytes += encoded.remaining();
+					}
+					delivered += batch.size();
+					participant.written(batch.get(batch.size() - 1).getSequence());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public void handOff(ByteBuffer frame) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/*
+	 * One participant multicasts to its group through the worker, as a binary
+	 * MSEND frame would arrive on its control connection
+	 */
+	static class FanOut extends Case {
+
+		int size;
+		int firstId;
+		List<Coordinator.MSendParticipant> members;
+		CoordinatorWorker worker;
+		Frame msend = new Frame();
+
+		FanOut(int size, int firstId) {
+			super("fanout members=" + size, "deliveries");
+			this.size = size;
+			this.firstId = firstId;
+		}
+
+		@Override
+		void setUp() throws IOException {
+			members = members(Group.named("fanout-" + size), firstId, size, true);
+			worker = new CoordinatorWorker(null, null, new DataOutputStream(OutputStream.nullOutputStream()));
+			worker.binary = true;
+			ByteBuffer frame = Frame.encode(Frame.MSEND, firstId, 0, Frame.text(MESSAGE));
+			msend.read(new DataInputStream(new ByteArrayInputStream(frame.array())));
+		}
+
+		@Override
+		long operation() throws IOException {
+			worker.handle(msend);
+			return size;
+		}
+
+		@Override
+		void tearDown() {
+			remove(members);
+		}
+	}
+
+	/*
+	 * A participant that reconnects after backlog messages were multicast, of
+	 * which every other one is too old to be delivered. Measured per message
+	 * in the log, delivered or not.
+	 */
+	static class Replay extends Case {
+
+		int backlog;
+		int firstId;
+		Coordinator.MSendParticipant participant;
+		Sink sink;
+
+		Replay(int backlog, int firstId) {
+			super("replay backlog=" + backlog, "messages");
+			this.backlog = backlog;
+			this.firstId = firstId;
+		}
+
+		@Override
+		void setUp() throws IOException {
+			Group group = Group.named("replay-" + backlog);
+			participant = members(group, firstId, 1, true).get(0);
+			sink = new Sink(participant);
+			long now = System.currentTimeMillis();
+			long expired = now - (Coordinator.threshold + 60) * 1000;
+			for (int i = 0; i < backlog; i++) {
+				MessageBean m = new MessageBean(firstId, MESSAGE + " " + i);
+				m.setTimestamp(i % 2 == 0 ? expired : now);
+				group.messageLog.append(m);
+			}
+		}
+
+		@Override
+		long operation() {
+			participant.setCursor(0);
+			participant.attachMSendLink(sink);
+			participant.lagging = true;
+			long before = sink.delivered;
+			sink.drain();
+			if (sink.delivered - before != backlog / 2) {
+				throw new IllegalStateException("Replayed " + (sink.delivered - before) + " of " + backlog / 2);
+			}
+			return backlog;
+		}
+
+		@Override
+		void tearDown() {
+			List<Coordinator.MSendParticipant> members = new ArrayList<Coordinator.MSendParticipant>();
+			members.add(participant);
+			remove(members);
+		}
+	}
+
+	/*
+	 * COMMANDS msend commands read and executed as by CoordinatorWorker.run.
+	 * The sender is not registered, so the messages go to the default group,
+	 * which has no members to deliver to.
+	 */
+	static class Parse extends Case {
+
+		boolean binary;
+		byte[] commands;
+
+		Parse(boolean binary) {
+			super("parse " + (binary ? "binary" : "text"), "commands");
+			this.binary = binary;
+		}
+
+		@Override
+		void setUp() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (int i = 0; i < COMMANDS; i++) {
+				if (binary) {
+					Frame.write(out, Frame.MSEND, 0, 0, Frame.text(MESSAGE));
+				} else {
+					out.writeUTF("msend " + MESSAGE);
+				}
+			}
+			out.flush();
+			commands = bytes.toByteArray();
+		}
+
+		@Override
+		long operation() throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(commands));
+			CoordinatorWorker worker = new CoordinatorWorker(null, in,
+					new DataOutputStream(OutputStream.nullOutputStream()));
+			worker.binary = binary;
+
+			// The loop of CoordinatorWorker.run, ending with the input instead of an EOFException
+			while (in.available() > 0) {
+				if (worker.binary) {
+					worker.frame.read(in);
+					worker.handle(worker.frame);
+				} else {
+					worker.handle(in.readUTF());
+				}
+			}
+			return COMMANDS;
+		}
+	}
+
+	/*
+	 * Batches of appends to thread-B's message log, each followed by a commit
+	 * as when the msend connection has nothing more waiting. The fsync policy
+	 * is taken from participant.log.fsync like in the participant.
+	 */
+	static class LogAppend extends Case {
+
+		static final int BATCH = 64;
+
+		File file;
+		ParticipantLogWriter writer;
+		String[] messages = new String[BATCH];
+
+		LogAppend() {
+			super("logappend batch=" + BATCH, "messages");
+		}
+
+		@Override
+		void setUp() throws IOException {
+			file = File.createTempFile("benchmark", ".log");
+			file.deleteOnExit();
+			writer = ParticipantLogWriter.open(file.getPath());
+			for (int i = 0; i < BATCH; i++) {
+				messages[i] = "1:" + MESSAGE + " " + i;
+			}
+		}
+
+		@Override
+		long operation() throws IOException {
+			for (String message : messages) {
+				writer.append(message);
+			}
+			writer.commit();
+			return BATCH;
+		}
+
+		// The file would grow by gigabytes otherwise
+		@Override
+		void iterationDone() throws IOException {
+			writer.file.getChannel().truncate(0);
+		}
+
+		@Override
+		void tearDown() throws IOException {
+			writer.endSession();
+			writer.file.close();
+			file.delete();
+		}
+	}
+
+	/*
+	 * MESSAGE frames of messages as a batch of an msend link holds them. Text
+	 * is made of words of a chat-like vocabulary, random of random printable
+	 * characters, which hardly compress.
+	 */
+	static ByteBuffer[] frames(boolean text, int count) {
+		String[] words = { "the", "a", "to", "and", "of", "in", "is", "it", "you", "that", "for", "on", "with", "we",
+				"this", "be", "are", "have", "not", "at", "message", "group", "coordinator", "participant", "online",
+				"offline", "reconnect", "later", "today", "meeting", "please", "thanks", "sent", "update", "see",
+				"order", "price", "status", "ok", "will" };
+		Random random = new Random(count);
+		ByteBuffer[] frames = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder message = new StringBuilder(COMPRESSED_MESSAGE_SIZE);
+			while (message.length() < COMPRESSED_MESSAGE_SIZE) {
+				if (text) {
+					message.append(words[random.nextInt(words.length)]).append(' ');
+				} else {
+					message.append((char) ('!' + random.nextInt(94)));
+				}
+			}
+			message.setLength(COMPRESSED_MESSAGE_SIZE);
+			frames[i] = Frame.encode(Frame.MESSAGE, 1, i + 1, Frame.text(message.toString()));
+		}
+		return frames;
+	}
+
+	static long length(ByteBuffer[] frames, int count) {
+		long length = 0;
+		for (int i = 0; i < count; i++) {
+			length += frames[i].remaining();
+		}
+		return length;
+	}
+
+	/*
+	 * Batches compressed as by an msend link, measured in bytes of the frames
+	 * before compression. The result adds the size on the wire and the CPU
+	 * time spent per byte saved; batches under coordinator.compression.minBytes
+	 * are left as they are.
+	 */
+	static class Compress extends Case {
+
+		boolean text;
+		int count;
+		ByteBuffer[] frames;
+		ByteBuffer[] batch;
+		BatchCompressor compressor = new BatchCompressor();
+		long rawBytes;
+		long wireBytes;
+
+		Compress(boolean text, int count) {
+			super("compress " + (text ? "text" : "random") + " batch=" + count, "bytes");
+			this.text = text;
+			this.count = count;
+		}
+
+		@Override
+		void setUp() {
+			frames = frames(text, count);
+			batch = new ByteBuffer[count];
+		}
+
+		@Override
+		long operation() {
+			System.arraycopy(frames, 0, batch, 0, count);
+			int written = compressor.compress(batch, count, count);
+			long raw = length(frames, count);
+			rawBytes += raw;
+			wireBytes += length(batch, written);
+			return raw;
+		}
+
+		@Override
+		String detail(double rate) {
+			double wire = (double) wireBytes / rawBytes;
+			if (wire >= 1) {
+				return "not compressed";
+			}
+			return String.format("wire %4.1f%% of raw, %.2f ns per byte saved", 100 * wire, 1e9 / rate / (1 - wire));
+		}
+
+		@Override
+		void tearDown() {
+			compressor.end();
+		}
+	}
+
+	/*
+	 * A compressed batch read as by thread-B: inflated and every message
+	 * decoded. Measured in bytes of the frames after inflating.
+	 */
+	static class Inflate extends Case {
+
+		boolean text;
+		int count;
+		long rawBytes;
+		ByteBuffer compressed;
+		Frame frame = new Frame();
+		Frame batched = new Frame();
+		Inflater inflater = new Inflater();
+
+		Inflate(boolean text, int count) {
+			super("inflate " + (text ? "text" : "random") + " batch=" + count, "bytes");
+			this.text = text;
+			this.count = count;
+		}
+
+		@Override
+		void setUp() {
+			ByteBuffer[] frames = frames(text, count);
+			rawBytes = length(frames, count);
+			BatchCompressor compressor = new BatchCompressor();
+			if (compressor.compress(frames, count, count) != 1) {
+				throw new IllegalStateException("Batch not compressed");
+			}
+			compressor.end();
+			compressed = frames[0];
+		}
+
+		@Override
+		long operation() throws IOException {
+			frame.read(compressed.duplicate());
+			ByteBuffer messages = frame.batchFrames(inflater);
+			int messagesRead = 0;
+			while (batched.read(messages)) {
+				batched.payloadText();
+				messagesRead++;
+			}
+			if (messagesRead != count) {
+				throw new IllegalStateException("Inflated " + messagesRead + " of " + count);
+			}
+			return rawBytes;
+		}
+
+		@Override
+		void tearDown() {
+			inflater.end();
+		}
+	}
+}
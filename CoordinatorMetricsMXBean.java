@@ -0,0 +1,57 @@
+import java.util.Map;
+
+/*
+ * Attributes of the coordinator's metrics over JMX, see Metrics. Latencies are
+ * summaries of count, p50, p99, p999 and max in microseconds, the maps keyed by
+ * participant id hold one value per registered participant.
+ */
+public interface CoordinatorMetricsMXBean {
+
+	long getMSends();
+
+	Map<String, Long> getFanOutLatencyMicros();
+
+	Map<String, Long> getWriteLatencyMicros();
+
+	Map<String, Long> getReplayDurationMicros();
+
+	long getReplayedMessages();
+
+	long getReplayRate();
+
+	long getExpiredMessages();
+
+	long getSkippedExpiredMessages();
+
+	long getBacklogHeapBytes();
+
+	long getSpilledSegments();
+
+	long getCompressedBatches();
+
+	long getCompressedBytes();
+
+	long getCompressedWireBytes();
+
+	long getDemotions();
+
+	long getPromotions();
+
+	long getDroppedSlowConsumers();
+
+	int getBufferedParticipants();
+
+	int getActiveWorkers();
+
+	int getMaxThreads();
+
+	long getRejectedConnections();
+
+	Map<String, Long> getBacklogMessages();
+
+	Map<String, Long> getBacklogBytes();
+
+	Map<String, Long> getOutboundQueueDepths();
+
+	Map<String, Long> getMaxWriteLatencyMicros();
+}
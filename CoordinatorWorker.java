@@ -0,0 +1,678 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/*
+ * This class is responsible for servicing each participant. A new instance of
+ * this class is created for each Participant.
+ */
+class CoordinatorWorker implements Runnable {
+
+	Socket socket;
+	DataInputStream dis;
+	DataOutputStream dos;
+
+	int participantId;
+	InetAddress participantIP;
+	int msendPort;
+
+	// Set once a participant registered or reconnected on this connection,
+	// frames naming another participant are refused from then on
+	boolean bound;
+
+	// Group named in the register command
+	String groupName = Group.DEFAULT;
+
+	// Set once the participant switched to the binary protocol, see Frame
+	boolean binary;
+
+	// Set when it also accepted compressed batches
+	boolean compressed;
+
+	// Set when it takes its multicast messages on this connection
+	boolean multiplexed;
+
+	// Set when another shard of the cluster opened this connection, the only
+	// kind that may send FORWARD, HANDOFF and CLUSTER frames
+	boolean peer;
+	Frame frame = new Frame();
+	
+	public static final String PARTICIPANT_REGISTER_NOTIFICATION = "Participant is added to the multicast group";
+	public static final String PARTICIPANT_REGISTER_ERROR = "Participant with same id already exists";
+	public static final String PARTICIPANT_GROUP_ERROR = "Invalid group name, use up to 64 letters, digits, '_', '.' or '-'";
+	public static final String PARTICIPANT_DEREGISTER_NOTIFICATION = "Participant is removed from multicast group";
+	public static final String PARTICIPANT_DEREGISTER_ERROR = "Participant is not registered.Please check";
+	public static final String PARTICIPANT_DISCONNECT_NOTIFICATION = "Participant is disconnected and will receive messages when it comes online";
+	public static final String PARTICIPANT_DISCONNECT_ERROR = "Participant is not registered.Please check";
+	public static final String PARTICIPANT_RECONNECT_NOTIFICATION = "Participant is reconnected and will be receiving messages sent within threshold";
+	public static final String PARTICIPANT_RECONNECT_ERROR = "Participant is not registered.Please check";
+	public static final String PARTICIPANT_MSEND_NOTIFICATION = "Multicast message is received by coordinator and will be send to all the participants";
+	public static final String PARTICIPANT_REDIRECT = "Participant belongs to the coordinator shard at";
+	public static final String PARTICIPANT_ID_ERROR = "Connection belongs to another participant";
+
+	CoordinatorWorker(Socket socket, DataInputStream dis, DataOutputStream dos) {
+		this.socket = socket;
+		this.dis = dis;
+		this.dos = dos;
+	}
+
+	/*
+	 * Used by workers that do not own a blocking socket
+	 */
+	CoordinatorWorker() {
+	}
+
+	@Override
+	public void run() {
+		Metrics.activeWorkers.incrementAndGet();
+		try {
+			while (true) {
+				if (binary) {
+					frame.read(dis);
+					handle(frame);
+				} else {
+					handle(dis.readUTF());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			connectionClosed(e instanceof EOFException ? null : e);
+		} finally {
+			Metrics.activeWorkers.decrementAndGet();
+		}
+	}
+
+	/*
+	 * msend link writing to this connection, for a participant that multiplexed
+	 * it. Replies and frames are written under the lock of dos.
+	 */
+	MSendLink openMuxLink(Coordinator.MSendParticipant participant) throws IOException {
+		// Replies must not wait behind the messages for the participant's TCP ACK
+		socket.setTcpNoDelay(true);
+		return new BlockingMSendLink(participant, this);
+	}
+
+	/*
+	 * Closes the connection, e.g. of a participant that stopped reading
+	 */
+	void closeConnection() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Takes the participant OFFLINE when it took its messages on this connection,
+	 * cause is null when the participant closed it
+	 */
+	void connectionClosed(IOException cause) {
+		Coordinator.MSendParticipant p = Coordinator.participants.get(participantId);
+		if (p != null) {
+			p.controlClosed(this, cause);
+		}
+	}
+
+	/*
+	 * Executes a single command received from the participant
+	 */
+	void handle(String input) throws IOException {
+		String command[] = input.split(" ");
+		switch (command[0]) {
+		case "protocol":
+			protocol(command);
+			break;
+		case "register":
+			register(command);
+			break;
+		case "deregister":
+			deregister();
+			break;
+		case "disconnect":
+			disconnect();
+			break;
+		case "reconnect":
+			reconnect(command);
+			break;
+		case "msend":
+			if (command.length < 2) {
+				reply("Invalid input");
+				break;
+			}
+			msend(input.substring(6));
+			break;
+		default:
+			System.out.println("Invalid input");
+			reply("Invalid input");
+			break;
+		}
+	}
+
+	/*
+	 * Executes a single command received as a binary frame
+	 */
+	void handle(Frame frame) throws IOException {
+		// Frames name the participant, so commands redirected to another shard
+		// work over a new connection, until a participant registered or
+		// reconnected on this one
+		if (bound && frame.participantId != participantId) {
+			reply(PARTICIPANT_ID_ERROR);
+			return;
+		}
+		participantId = frame.participantId;
+		switch (frame.opcode) {
+		case Frame.REGISTER:
+			if (readAddress(frame)) {
+				register();
+			}
+			break;
+		case Frame.DEREGISTER:
+			deregister();
+			break;
+		case Frame.DISCONNECT:
+			disconnect();
+			break;
+		case Frame.RECONNECT:
+			if (readAddress(frame)) {
+				reconnect();
+			}
+			break;
+		case Frame.MSEND:
+			msend(frame.payloadText());
+			break;
+		case Frame.ACK:
+			acknowledged(frame.sequence);
+			break;
+		case Frame.FORWARD:
+			if (refusedFromParticipant()) {
+				break;
+			}
+			forwarded(frame);
+			break;
+		case Frame.HANDOFF:
+			if (refusedFromParticipant()) {
+				break;
+			}
+			handedOff(frame);
+			break;
+		case Frame.CLUSTER:
+			if (refusedFromParticipant()) {
+				break;
+			}
+			Coordinator.cluster.update(frame.payloadText());
+			break;
+		default:
+			System.out.println("Invalid input");
+			reply("Invalid input");
+			break;
+		}
+	}
+
+	/*
+	 * Frames between shards are only taken from peer links, which exist only
+	 * when this coordinator is in a cluster
+	 */
+	private boolean refusedFromParticipant() throws IOException {
+		if (peer) {
+			return false;
+		}
+		System.out.println("Invalid input");
+		reply("Invalid input");
+		return true;
+	}
+
+	/*
+	 * IP address and port of thread-B, and the group, from a REGISTER or
+	 * RECONNECT frame
+	 */
+	private boolean readAddress(Frame frame) {
+		try {
+			participantIP = InetAddress.getByName(frame.addressHost());
+			msendPort = frame.addressPort();
+			String group = frame.addressGroup();
+			groupName = group != null ? group : Group.DEFAULT;
+			return true;
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Acknowledgement of a participant that takes its messages on this connection
+	 */
+	private void acknowledged(long sequence) {
+		Coordinator.MSendParticipant p = Coordinator.participants.get(participantId);
+		if (p != null && p.control == this) {
+			p.acknowledged(sequence);
+		}
+	}
+
+	/*
+	 * Runs the rest of a command once its write-ahead log record ending at
+	 * position is durable, right away without a write-ahead log. The worker waits
+	 * for the fsync on its own thread.
+	 */
+	void whenDurable(long position, Completion then) throws IOException {
+		if (Coordinator.wal != null) {
+			Coordinator.wal.commit(position);
+		}
+		then.run();
+	}
+
+	/*
+	 * The part of a command that follows its write-ahead log record: the reply
+	 * and the delivery
+	 */
+	abstract static class Completion implements Runnable {
+
+		abstract void complete() throws IOException, InterruptedException;
+
+		@Override
+		public void run() {
+			try {
+				complete();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Sends a response to the participant's command, between the frames of a
+	 * multiplexed msend link
+	 */
+	void reply(String response) throws IOException {
+		synchronized (dos) {
+			if (binary) {
+				dos.write(Frame.encode(Frame.REPLY, participantId, 0, Frame.text(response)).array());
+			} else {
+				dos.writeUTF(response);
+			}
+			dos.flush();
+		}
+	}
+
+	/*
+	 * Sends a participant that belongs to another shard of the cluster there.
+	 * Returns false when it belongs to this coordinator.
+	 */
+	private boolean redirect() throws IOException {
+		Cluster cluster = Coordinator.cluster;
+		if (cluster == null || cluster.owns(participantId)) {
+			return false;
+		}
+		reply(PARTICIPANT_REDIRECT + " " + cluster.ownerOf(participantId));
+		return true;
+	}
+
+	/*
+	 * Switches the connection to the binary protocol. The response is the last
+	 * text sent on it. Batches are compressed when the participant offers it and
+	 * coordinator.compression is set, and multicast messages are written to this
+	 * connection when the participant asks for it. Another shard names the
+	 * connection a peer link, which is only taken in a cluster.
+	 */
+	private void protocol(String[] command) throws IOException {
+		if (command.length > 1 && command[1].equals("binary")) {
+			compressed = false;
+			multiplexed = false;
+			peer = false;
+			for (int i = 2; i < command.length; i++) {
+				if (command[i].equals(Frame.COMPRESSION)) {
+					compressed = BatchCompressor.ENABLED;
+				} else if (command[i].equals(Frame.MULTIPLEX)) {
+					multiplexed = true;
+				} else if (command[i].equals(Frame.PEER)) {
+					peer = Coordinator.cluster != null;
+				}
+			}
+			String accepted = Coordinator.acks ? Frame.BINARY_ACCEPTED_ACKS : Frame.BINARY_ACCEPTED;
+			if (compressed) {
+				accepted += Frame.COMPRESSED;
+			}
+			if (multiplexed) {
+				accepted += Frame.MULTIPLEXED;
+			}
+			if (peer) {
+				accepted += Frame.PEERED;
+			}
+			reply(accepted);
+			binary = true;
+		} else {
+			reply("Invalid input");
+		}
+	}
+
+	private void register(String[] command) throws IOException {
+		/*
+		 * Info is in the order of participantId, participantId IP and port number where
+		 * its thread-B will receive multicast messages, optionally followed by the
+		 * group to join
+		 */
+		String[] info = command.length > 1 ? command[1].split(",", 4) : new String[0];
+		if (info.length < 3) {
+			reply("Invalid input");
+			return;
+		}
+		try {
+			int id = Integer.parseInt(info[0]);
+			if (bound && id != participantId) {
+				reply(PARTICIPANT_ID_ERROR);
+				return;
+			}
+			participantId = id;
+			participantIP = InetAddress.getByName(info[1]);
+			msendPort = Integer.parseInt(info[2]);
+		} catch (NumberFormatException e) {
+			reply("Invalid input");
+			return;
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			reply("Invalid input");
+			return;
+		}
+		groupName = info.length > 3 ? info[3] : Group.DEFAULT;
+		register();
+	}
+
+	private void register() {
+		try {
+			if (!Group.isValidName(groupName)) {
+				reply(PARTICIPANT_GROUP_ERROR);
+				return;
+			}
+			if (redirect()) {
+				return;
+			}
+			Group group = Group.named(groupName);
+			final Coordinator.MSendParticipant p = new Coordinator.MSendParticipant(participantId, participantIP,
+					msendPort, ParticipantStatus.ONLINE, group);
+			p.binary = binary;
+			p.compressed = compressed;
+			p.control = multiplexed ? this : null;
+			p.acked = binary && Coordinator.acks;
+			if (Coordinator.participants.add(p)) {
+				group.members.add(p);
+				bound = true;
+				whenDurable(Coordinator.wal != null ? Coordinator.wal.logRegister(p) : 0, new Completion() {
+					@Override
+					void complete() throws IOException {
+						reply(PARTICIPANT_REGISTER_NOTIFICATION);
+						p.createMSendConn();
+						System.out.println("Ready to send messages to participant :" + p.getParticipantID());
+					}
+				});
+			}else {
+				reply(PARTICIPANT_REGISTER_ERROR);
+				System.out.println("Participant with same id already exists");
+			}	
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void deregister() {
+		try {
+			Coordinator.MSendParticipant p = Coordinator.participants.get(participantId);
+			if (p == null) {
+				if (!redirect()) {
+					reply(PARTICIPANT_DEREGISTER_ERROR);
+				}
+				return;
+			}
+			p.setStatus(ParticipantStatus.NOT_MEMBER);
+			p.closeMSendConn();
+			Coordinator.participants.remove(this.participantId);
+			p.group.members.remove(this.participantId);
+			whenDurable(Coordinator.wal != null ? Coordinator.wal.logDeregister(participantId) : 0, new Completion() {
+				@Override
+				void complete() throws IOException {
+					System.out.println(PARTICIPANT_DEREGISTER_NOTIFICATION);
+					reply(PARTICIPANT_DEREGISTER_NOTIFICATION);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void disconnect() {
+		try {
+			Coordinator.MSendParticipant p = Coordinator.participants.get(participantId);
+			if (p == null) {
+				if (!redirect()) {
+					reply(PARTICIPANT_DISCONNECT_ERROR);
+				}
+				return;
+			}
+			p.setStatus(ParticipantStatus.OFFLINE);
+			p.closeMSendConn();
+			whenDurable(Coordinator.wal != null ? Coordinator.wal.logDisconnect(p) : 0, new Completion() {
+				@Override
+				void complete() throws IOException {
+					System.out.println(PARTICIPANT_DISCONNECT_NOTIFICATION);
+					reply(PARTICIPANT_DISCONNECT_NOTIFICATION);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void reconnect(String[] command) throws IOException {
+		/*
+		 * Info is in the order of participantId IP and port number where its thread-B
+		 * will receive multicast messages, followed by the participant id when the
+		 * participant reconnects over a new connection, e.g. after a coordinator
+		 * restart
+		 */
+		String[] info = command.length > 1 ? command[1].split(",") : new String[0];
+		if (info.length < 2) {
+			reply("Invalid input");
+			return;
+		}
+		try {
+			participantIP = InetAddress.getByName(info[0]);
+			msendPort = Integer.parseInt(info[1]);
+			if (info.length > 2) {
+				int id = Integer.parseInt(info[2]);
+				if (bound && id != participantId) {
+					reply(PARTICIPANT_ID_ERROR);
+					return;
+				}
+				participantId = id;
+			}
+		} catch (NumberFormatException e) {
+			reply("Invalid input");
+			return;
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			reply("Invalid input");
+			return;
+		}
+		reconnect();
+	}
+
+	private void reconnect() {
+		try {
+			final Coordinator.MSendParticipant p = Coordinator.participants.get(participantId);
+			if (p == null) {
+				if (!redirect()) {
+					reply(PARTICIPANT_RECONNECT_ERROR);
+				}
+				return;
+			}
+			p.setParticipantIP(participantIP);
+			p.setMSendPort(msendPort);
+			p.binary = binary;
+			p.compressed = compressed;
+			p.control = multiplexed ? this : null;
+			p.acked = binary && Coordinator.acks;
+			bound = true;
+			whenDurable(Coordinator.wal != null ? Coordinator.wal.logReconnect(p) : 0, new Completion() {
+				@Override
+				void complete() throws IOException, InterruptedException {
+					p.createMSendConn();
+					reply(PARTICIPANT_RECONNECT_NOTIFICATION);
+
+					/*
+					 * The backlog is the range of the message log after the participant's
+					 * cursor, starting at the first message still within the threshold. The
+					 * msend link streams it on its own thread. Messages logged before the
+					 * participant is ONLINE are read by the catch up, later ones are queued
+					 * as well and written once, after the backlog.
+					 */
+					p.setStatus(ParticipantStatus.ONLINE);
+					p.catchUp();
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void msend(String message) {
+		try {
+			// The message goes to the sender's group
+			Coordinator.MSendParticipant sender = Coordinator.participants.get(participantId);
+			if (sender == null && participantId != 0 && redirect()) {
+				return;
+			}
+			final Group group = sender != null ? sender.group : Group.defaultGroup();
+
+			// The message is logged once, OFFLINE members find it after their cursor
+			final MessageBean msgObj = new MessageBean(participantId, message);
+			whenDurable(log(group, msgObj), new Completion() {
+				@Override
+				void complete() throws IOException, InterruptedException {
+					// Delivered even when the sender is gone by the time the record is durable
+					Metrics.msends.increment();
+					if (Coordinator.cluster != null) {
+						Coordinator.cluster.forward(group, msgObj);
+					}
+					fanOut(group, msgObj);
+					reply(PARTICIPANT_MSEND_NOTIFICATION);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * A message multicast on another shard of the cluster, delivered to the
+	 * members of its group on this shard. It keeps the timestamp it got there.
+	 */
+	private void forwarded(Frame frame) {
+		try {
+			String name = frame.forwardGroup();
+			if (!Group.isValidName(name)) {
+				System.out.println("Forwarded message for invalid group " + name + " skipped");
+				return;
+			}
+			final Group group = Group.named(name);
+			final MessageBean msgObj = new MessageBean(frame.participantId, frame.forwardMessage());
+			msgObj.setTimestamp(frame.sequence);
+			whenDurable(log(group, msgObj), new Completion() {
+				@Override
+				void complete() throws InterruptedException {
+					fanOut(group, msgObj);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A participant another shard of the cluster hands over to this one. Its
+	 * cursor is placed before the first message logged here from the timestamp
+	 * it was handed over with, less Cluster.HANDOFF_OVERLAP_MS, so it may get a
+	 * few messages again but misses none. A participant that was ONLINE on the
+	 * binary protocol is waiting for the msend connection of this shard.
+	 */
+	private void handedOff(Frame frame) {
+		try {
+			String name = frame.addressGroup();
+			if (name != null && !Group.isValidName(name)) {
+				System.out.println("Participant " + participantId + " handed over with invalid group " + name);
+				return;
+			}
+			Group group = name != null ? Group.named(name) : Group.defaultGroup();
+			final Coordinator.MSendParticipant p = new Coordinator.MSendParticipant(participantId,
+					InetAddress.getByName(frame.addressHost()), frame.addressPort(), ParticipantStatus.OFFLINE, group);
+			p.binary = frame.handoffBinary();
+			p.compressed = frame.handoffCompressed();
+			p.acked = p.binary && Coordinator.acks;
+			p.setCursor(group.messageLog.seek(frame.sequence - Cluster.HANDOFF_OVERLAP_MS) - 1);
+			if (!Coordinator.participants.add(p)) {
+				System.out.println("Participant " + participantId + " handed over is already registered");
+				return;
+			}
+			group.members.add(p);
+			final boolean online = frame.handoffStatus() == ParticipantStatus.ONLINE;
+			long walPosition = 0;
+			if (Coordinator.wal != null) {
+				walPosition = Coordinator.wal.logRegister(p);
+				if (!online) {
+					walPosition = Coordinator.wal.logDisconnect(p);
+				}
+			}
+			whenDurable(walPosition, new Completion() {
+				@Override
+				void complete() throws IOException, InterruptedException {
+					if (online) {
+						p.createMSendConn();
+						p.setStatus(ParticipantStatus.ONLINE);
+						p.catchUp();
+					}
+					System.out.println("Participant " + p.getParticipantID() + " handed over to this shard");
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Appends the message to the group's log and to the write-ahead log, and
+	 * returns the position of its write-ahead log record
+	 */
+	private static long log(Group group, MessageBean msgObj) throws IOException {
+		synchronized (group.messageLog) {
+			group.messageLog.append(msgObj);
+			if (Coordinator.wal != null) {
+				return Coordinator.wal.logMSend(group, msgObj);
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Queues a logged message for the ONLINE members of the group
+	 */
+	private static void fanOut(Group group, MessageBean msgObj) throws InterruptedException {
+		long start = System.nanoTime();
+
+		/*
+		 * A participant that turns ONLINE after this snapshot was taken reads the
+		 * message from the log when it catches up, as it was logged before
+		 */
+		for (Coordinator.MSendParticipant p : group.members.online()) {
+			p.enqueue(msgObj);
+		}
+
+		Metrics.fanOut.record(System.nanoTime() - start);
+
+		// Messages every member has got past are no longer needed
+		group.messageLog.trimTo(group.minCursor());
+	}
+}
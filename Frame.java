@@ -0,0 +1,359 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Binary wire protocol shared by the coordinator and the participants. Every
+ * frame is
+ *
+ * [int length][byte version][byte opcode][int participant id][long sequence][payload]
+ *
+ * where length counts the bytes after it. Payloads are raw bytes, message
+ * text is UTF-8, so messages are not limited to the 64 KB of writeUTF.
+ *
+ * Connections start in the text protocol. A participant that sends the
+ * command "protocol binary" and gets BINARY_ACCEPTED back uses frames from
+ * then on, for its control connection as well as for the multicast messages
+ * the coordinator sends to its thread-B. Participants that never ask keep
+ * using writeUTF strings. When the coordinator answers BINARY_ACCEPTED_ACKS
+ * instead, thread-B acknowledges the messages it logged with ACK frames on
+ * the msend connection.
+ *
+ * A participant that adds "deflate" to the command also accepts compressed
+ * batches, which a coordinator configured for them confirms by appending
+ * COMPRESSED to its answer. Its msend connection may then carry BATCH frames
+ * in place of runs of MESSAGE frames.
+ *
+ * A participant that adds "mux" takes its multicast messages on the control
+ * connection it opened, when the answer ends with MULTIPLEXED. The coordinator
+ * then never connects to the participant's thread-B: MESSAGE, BATCH and
+ * HANDOFF frames are written between the REPLY frames of the connection, and
+ * ACK frames are sent on it as well. Coordinators that do not know the token
+ * leave it out of the answer and connect to thread-B as before.
+ *
+ * The shards of a cluster add "peer" on the connections they open to each
+ * other. Only a coordinator that is in a cluster confirms it with PEERED, and
+ * FORWARD, HANDOFF and CLUSTER frames are refused on any other connection.
+ *
+ * An instance holds the last frame read. It is reused for every frame of a
+ * connection so that reading does not allocate beyond the payload text.
+ */
+final class Frame {
+
+	static final byte VERSION = 1;
+
+	// Participant to coordinator
+	static final byte REGISTER = 1;
+	static final byte DEREGISTER = 2;
+	static final byte DISCONNECT = 3;
+	static final byte RECONNECT = 4;
+	static final byte MSEND = 5;
+
+	// Coordinator to participant, a response on the control connection and a
+	// multicast message on the msend connection
+	static final byte REPLY = 6;
+	static final byte MESSAGE = 7;
+
+	// Participant to coordinator on the msend connection, or the control
+	// connection it is multiplexed on, every message up to the sequence is logged
+	static final byte ACK = 8;
+
+	// Between the shards of a coordinator cluster, see Cluster. A message
+	// multicast on another shard, a participant moving to the receiving shard
+	// and the list of shards. HANDOFF is also sent to the participant on its
+	// msend connection, which then waits for the connection of its new shard.
+	static final byte FORWARD = 9;
+	static final byte HANDOFF = 10;
+	static final byte CLUSTER = 11;
+
+	// Coordinator to participant on the msend connection, MESSAGE frames written
+	// together and compressed as one. The payload is the length of the frames
+	// followed by them in the deflate format, the participant id is the number
+	// of messages and the sequence that of the last one.
+	static final byte BATCH = 12;
+
+	// Version, opcode, participant id and sequence
+	static final int HEADER_SIZE = 14;
+
+	// Largest payload accepted, protocol.maxPayload
+	static final int MAX_PAYLOAD = Integer.getInteger("protocol.maxPayload", 16 * 1024 * 1024);
+
+	public static final String NEGOTIATE = "protocol binary";
+	public static final String BINARY_ACCEPTED = "Switched to the binary protocol";
+	public static final String BINARY_ACCEPTED_ACKS = "Switched to the binary protocol with acknowledgements";
+	public static final String COMPRESSION = "deflate";
+	public static final String COMPRESSED = " and compressed batches";
+	public static final String MULTIPLEX = "mux";
+	public static final String MULTIPLEXED = " and messages on this connection";
+	public static final String PEER = "peer";
+	public static final String PEERED = " between shards";
+
+	static final byte[] EMPTY = new byte[0];
+
+	byte opcode;
+	int participantId;
+	long sequence;
+	byte[] payload = new byte[256];
+	int payloadLength;
+
+	// MESSAGE frames inflated from the last BATCH, see batchFrames
+	private byte[] batch = EMPTY;
+
+	/*
+	 * Reads the next frame from a blocking stream
+	 */
+	void read(DataInputStream in) throws IOException {
+		int length = checkLength(in.readInt());
+		byte version = in.readByte();
+		checkVersion(version);
+		opcode = in.readByte();
+		participantId = in.readInt();
+		sequence = in.readLong();
+		payloadLength = length - HEADER_SIZE;
+		ensurePayloadCapacity(payloadLength);
+		in.readFully(payload, 0, payloadLength);
+	}
+
+	/**
+	 * Reads the next frame from a buffer in read mode. Returns false and leaves
+	 * the buffer as it is when the frame is not complete yet, see frameSize for
+	 * the room it needs.
+	 */
+	boolean read(ByteBuffer in) throws IOException {
+		if (in.remaining() < 4) {
+			return false;
+		}
+		int length = checkLength(in.getInt(in.position()));
+		if (in.remaining() < 4 + length) {
+			return false;
+		}
+		in.getInt();
+		checkVersion(in.get());
+		opcode = in.get();
+		participantId = in.getInt();
+		sequence = in.getLong();
+		payloadLength = length - HEADER_SIZE;
+		ensurePayloadCapacity(payloadLength);
+		in.get(payload, 0, payloadLength);
+		return true;
+	}
+
+	/*
+	 * Size of the frame at the start of the buffer, or 0 when its length is not
+	 * there yet
+	 */
+	static int frameSize(ByteBuffer in) throws IOException {
+		return in.remaining() < 4 ? 0 : 4 + checkLength(in.getInt(in.position()));
+	}
+
+	String payloadText() {
+		return new String(payload, 0, payloadLength, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Port of a REGISTER, RECONNECT or HANDOFF payload
+	 */
+	int addressPort() {
+		int at = addressOffset();
+		return ((payload[at] & 0xff) << 24) | ((payload[at + 1] & 0xff) << 16) | ((payload[at + 2] & 0xff) << 8)
+				| (payload[at + 3] & 0xff);
+	}
+
+	/*
+	 * IP address of a REGISTER, RECONNECT or HANDOFF payload
+	 */
+	String addressHost() {
+		int at = addressOffset() + 4;
+		return new String(payload, at, groupSeparator() - at, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Group of a REGISTER payload, null when none is given
+	 */
+	String addressGroup() {
+		int separator = groupSeparator();
+		if (separator == payloadLength) {
+			return null;
+		}
+		return new String(payload, separator + 1, payloadLength - separator - 1, StandardCharsets.UTF_8);
+	}
+
+	private int groupSeparator() {
+		for (int i = addressOffset() + 4; i < payloadLength; i++) {
+			if (payload[i] == ',') {
+				return i;
+			}
+		}
+		return payloadLength;
+	}
+
+	/*
+	 * Payload of REGISTER and RECONNECT, the port and IP address where the
+	 * participant's thread-B receives multicast messages
+	 */
+	static byte[] address(String host, int port) {
+		return address(host, port, null);
+	}
+
+	/*
+	 * Payload of a REGISTER that joins a group, the group follows the address
+	 * after a comma as in the text command
+	 */
+	static byte[] address(String host, int port, String group) {
+		byte[] hostBytes = (group == null ? host : host + "," + group).getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(4 + hostBytes.length).putInt(port).put(hostBytes).array();
+	}
+
+	// A HANDOFF payload starts with the status and the protocol of the participant
+	private int addressOffset() {
+		return opcode == HANDOFF ? 2 : 0;
+	}
+
+	/*
+	 * Payload of HANDOFF between shards, the participant's status and protocol
+	 * followed by its address and group. The protocol byte has a bit for binary
+	 * frames and one for compressed batches. The sequence of the frame is the
+	 * timestamp of the first message the participant did not get yet.
+	 */
+	static byte[] handoff(ParticipantStatus status, boolean binary, boolean compressed, String host, int port,
+			String group) {
+		byte[] address = address(host, port, group);
+		byte protocol = 0;
+		if (binary) {
+			protocol |= 1;
+		}
+		if (compressed) {
+			protocol |= 2;
+		}
+		return ByteBuffer.allocate(2 + address.length).put((byte) status.ordinal()).put(protocol).put(address)
+				.array();
+	}
+
+	ParticipantStatus handoffStatus() {
+		return ParticipantStatus.values()[payload[0]];
+	}
+
+	boolean handoffBinary() {
+		return (payload[1] & 1) != 0;
+	}
+
+	boolean handoffCompressed() {
+		return (payload[1] & 2) != 0;
+	}
+
+	/*
+	 * Payload of FORWARD, the group followed by the message text. The sequence
+	 * of the frame is the timestamp the message got on the shard it was sent to.
+	 */
+	static byte[] forward(String group, String message) {
+		byte[] groupBytes = group.getBytes(StandardCharsets.UTF_8);
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(1 + groupBytes.length + messageBytes.length).put((byte) groupBytes.length)
+				.put(groupBytes).put(messageBytes).array();
+	}
+
+	String forwardGroup() {
+		return new String(payload, 1, payload[0] & 0xff, StandardCharsets.UTF_8);
+	}
+
+	String forwardMessage() {
+		int at = 1 + (payload[0] & 0xff);
+		return new String(payload, at, payloadLength - at, StandardCharsets.UTF_8);
+	}
+
+	static byte[] text(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The MESSAGE frames of the BATCH read last, inflated into a buffer that is
+	 * reused for the next batch. They are read from it like from the
+	 * connection, with another Frame.
+	 */
+	ByteBuffer batchFrames(Inflater inflater) throws IOException {
+		int length = payloadLength < 4 ? -1 : ByteBuffer.wrap(payload).getInt();
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Invalid batch length " + length);
+		}
+		// One byte more than announced so that a longer batch is noticed
+		if (batch.length < length + 1) {
+			batch = new byte[Math.max(length + 1, batch.length * 2)];
+		}
+		inflater.reset();
+		inflater.setInput(payload, 4, payloadLength - 4);
+		int inflated = 0;
+		try {
+			while (!inflater.finished() && inflated <= length) {
+				int n = inflater.inflate(batch, inflated, length + 1 - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt batch: " + e.getMessage());
+		}
+		if (!inflater.finished() || inflated != length) {
+			throw new IOException("Corrupt batch of " + inflated + " bytes, expected " + length);
+		}
+		return ByteBuffer.wrap(batch, 0, length);
+	}
+
+	/*
+	 * Encodes a frame into a heap buffer ready to be written
+	 */
+	static ByteBuffer encode(byte opcode, int participantId, long sequence, byte[] payload) {
+		return encode(opcode, participantId, sequence, payload, payload.length);
+	}
+
+	/*
+	 * Encodes a frame with the first length bytes of payload
+	 */
+	static ByteBuffer encode(byte opcode, int participantId, long sequence, byte[] payload, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + length);
+		frame.putInt(HEADER_SIZE + length);
+		frame.put(VERSION);
+		frame.put(opcode);
+		frame.putInt(participantId);
+		frame.putLong(sequence);
+		frame.put(payload, 0, length);
+		frame.flip();
+		return frame;
+	}
+
+	/*
+	 * Writes a frame to a stream, which should be buffered
+	 */
+	static void write(DataOutputStream out, byte opcode, int participantId, long sequence, byte[] payload)
+			throws IOException {
+		out.writeInt(HEADER_SIZE + payload.length);
+		out.writeByte(VERSION);
+		out.writeByte(opcode);
+		out.writeInt(participantId);
+		out.writeLong(sequence);
+		out.write(payload);
+	}
+
+	private static int checkLength(int length) throws IOException {
+		if (length < HEADER_SIZE || length - HEADER_SIZE > MAX_PAYLOAD) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		return length;
+	}
+
+	private static void checkVersion(byte version) throws IOException {
+		if (version != VERSION) {
+			throw new IOException("Unsupported protocol version " + version);
+		}
+	}
+
+	private void ensurePayloadCapacity(int length) {
+		if (payload.length < length) {
+			payload = new byte[Math.max(length, payload.length * 2)];
+		}
+	}
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/*
+ * A named multicast group. Every participant is a member of exactly one group,
+ * given when it registers, and its multicasts go to the members of that group
+ * only. A group has its own message log and its own membership index, so a
+ * multicast costs in proportion to the size of its group no matter how many
+ * participants other groups have. Groups are created by the first participant
+ * that registers with their name.
+ */
+class Group {
+
+	static final String DEFAULT = "default";
+
+	// Group names travel inside commands separated by spaces and commas
+	static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_.-]{1,64}");
+
+	private static final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+	final String name;
+
+	// Every message multicast to the group is stored once in this log
+	final MessageLog messageLog = new MessageLog();
+
+	// Members of the group and its ONLINE members, iterated by the fan-out
+	final ParticipantRegistry members = new ParticipantRegistry(true);
+
+	Group(String name) {
+		this.name = name;
+	}
+
+	/*
+	 * Returns the group with the name, creating it when it does not exist yet
+	 */
+	static Group named(String name) {
+		Group group = groups.get(name);
+		if (group == null) {
+			Group created = new Group(name);
+			group = groups.putIfAbsent(name, created);
+			if (group == null) {
+				group = created;
+			}
+		}
+		return group;
+	}
+
+	static Group defaultGroup() {
+		return named(DEFAULT);
+	}
+
+	static boolean isValidName(String name) {
+		return VALID_NAME.matcher(name).matches();
+	}
+
+	/*
+	 * Forgets all groups, used by a standby before it loads the primary's state.
+	 * Their messages no longer count toward the memory budget.
+	 */
+	static void clear() {
+		for (Group group : groups.values()) {
+			group.messageLog.clear();
+		}
+		groups.clear();
+	}
+
+	static Iterable<Group> all() {
+		return groups.values();
+	}
+
+	/*
+	 * Sequence number up to which every member got the messages, so that the log
+	 * can be trimmed up to it
+	 */
+	long minCursor() {
+		long min = messageLog.lastSequence();
+		for (Coordinator.MSendParticipant p : members.members()) {
+			min = Math.min(min, p.getCursor());
+		}
+		return min;
+	}
+}
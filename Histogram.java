@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of durations in buckets of microseconds, exact below 16 us and
+ * within 1/16 above. Recording is lock free and does not allocate, so it can
+ * sit on the msend path. It counts every recording since the coordinator
+ * started, see Metrics. The load generator sums per thread histograms
+ * into one per report.
+ */
+class Histogram {
+
+	static final int SUB_BUCKETS = 16;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sumMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	void add(Histogram other) {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.addAndGet(i, other.counts.get(i));
+		}
+		count.addAndGet(other.count.get());
+		sumMicros.addAndGet(other.sumMicros.get());
+		long max = maxMicros.get();
+		long otherMax = other.maxMicros.get();
+		while (otherMax > max && !maxMicros.compareAndSet(max, otherMax)) {
+			max = maxMicros.get();
+		}
+	}
+
+	/*
+	 * Only safe while nothing records, the load generator resets under its
+	 * own lock
+	 */
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sumMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	long count() {
+		return count.get();
+	}
+
+	long sumMicros() {
+		return sumMicros.get();
+	}
+
+	long maxMicros() {
+		return maxMicros.get();
+	}
+
+	/*
+	 * Upper end in microseconds of the bucket the quantile falls into, 0 when
+	 * nothing was recorded
+	 */
+	long percentile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length() && total > 0; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(maxMicros.get(), upperBound(i));
+			}
+		}
+		return 0;
+	}
+
+	private static int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+		return (exponent - 3) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + 3;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+	}
+}
@@ -0,0 +1,558 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Inflater;
+
+/*
+ * Load generator that simulates many participants in one JVM against a
+ * coordinator running on its own. Every simulated participant has a control
+ * connection on the binary protocol and a port of its own for its msend
+ * connection. Driver threads send a mix of msend, disconnect, reconnect and
+ * deregister/register commands, receiver threads read the multicast messages.
+ *
+ * Every message carries the time it was meant to be sent, so the receivers
+ * measure the delivery latency from msend to the moment thread-B would log it.
+ * With a rate the latency counts from the scheduled send time, so a coordinator
+ * that falls behind shows in the latency instead of slowing the load down.
+ * After a reconnect the time until the participant gets the first message sent
+ * after it is the replay catch up time; the messages before it are its backlog
+ * and do not count as latency. With load.compression the participants accept
+ * compressed batches, which the receivers inflate.
+ *
+ * java LoadGenerator host:port participants
+ * java -Dload.rate=1000,2000,4000,8000 -Dload.durationS=20 LoadGenerator 127.0.0.1:9000 2000
+ */
+public class LoadGenerator {
+
+	static final int DRIVERS = Integer.getInteger("load.drivers", 4);
+	static final int RECEIVERS = Integer.getInteger("load.receivers", 2);
+	static final int GROUPS = Integer.getInteger("load.groups", 1);
+	static final int FIRST_ID = Integer.getInteger("load.firstId", 1);
+	// At least the send time, 20 digits, and a space
+	static final int MESSAGE_SIZE = Math.max(21, Integer.getInteger("load.messageSize", 64));
+	static final int DISCONNECT_PERCENT = Integer.getInteger("load.disconnectPercent", 2);
+	static final int REREGISTER_PERCENT = Integer.getInteger("load.reregisterPercent", 0);
+	static final long DURATION_MS = Long.getLong("load.durationS", 30) * 1000;
+	static final long REPORT_MS = Long.getLong("load.reportMs", 1000);
+	static final long SEED = Long.getLong("load.seed", 1);
+	static final boolean COMPRESSION = Boolean.getBoolean("load.compression");
+
+	// Address the simulated participants receive multicast messages on
+	static final String HOST = System.getProperty("load.host", "127.0.0.1");
+
+	InetSocketAddress coordinator;
+	SimulatedParticipant[] participants;
+	Receiver[] receivers;
+	boolean acks;
+
+	// Commands per second of all drivers in the current stage, 0 for as fast as replies come
+	volatile long rate;
+	volatile int stage;
+	volatile boolean running = true;
+
+	LongAdder msends = new LongAdder();
+	LongAdder commands = new LongAdder();
+	LongAdder errors = new LongAdder();
+
+	LoadGenerator(InetSocketAddress coordinator, int participants) {
+		this.coordinator = coordinator;
+		this.participants = new SimulatedParticipant[participants];
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: java LoadGenerator host:port participants");
+			return;
+		}
+		String[] rates = System.getProperty("load.rate", "0").split(",");
+		new LoadGenerator(ShardRing.address(args[0]), Integer.parseInt(args[1])).run(rates);
+		System.exit(0);
+	}
+
+	void run(String[] rates) throws Exception {
+		receivers = new Receiver[RECEIVERS];
+		for (int r = 0; r < RECEIVERS; r++) {
+			receivers[r] = new Receiver();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < participants.length; i++) {
+			SimulatedParticipant p = new SimulatedParticipant(FIRST_ID + i, "load-" + i % GROUPS);
+			p.listen(receivers[i % RECEIVERS]);
+			p.connect();
+			p.register();
+			participants[i] = p;
+		}
+		System.out.println("Registered " + participants.length + " participants in " + GROUPS + " groups in "
+				+ (System.nanoTime() - start) / 1000000 + " ms, acks=" + acks);
+		for (int r = 0; r < RECEIVERS; r++) {
+			start(receivers[r], "receiver-" + r);
+		}
+		for (int d = 0; d < DRIVERS; d++) {
+			start(new Driver(d), "driver-" + d);
+		}
+
+		Histogram totalLatency = new Histogram();
+		Histogram totalReplay = new Histogram();
+		for (String stageRate : rates) {
+			rate = Long.parseLong(stageRate.trim());
+			stage++;
+			System.out.println("Stage " + stage + ": " + (rate > 0 ? rate + " commands/s" : "as fast as possible"));
+			runStage(totalLatency, totalReplay);
+		}
+		running = false;
+		Thread.sleep(REPORT_MS);
+
+		// Leaves the coordinator as it was, so the ids can be used again
+		for (SimulatedParticipant p : participants) {
+			if (!p.broken) {
+				try {
+					p.deregister();
+				} catch (IOException e) {
+					errors.increment();
+				}
+			}
+		}
+		System.out.println("Total latency " + summary(totalLatency) + ", replay " + summary(totalReplay) + ", errors "
+				+ errors.sum());
+	}
+
+	/*
+	 * Reports every REPORT_MS and once more for the whole stage
+	 */
+	private void runStage(Histogram totalLatency, Histogram totalReplay) throws InterruptedException {
+		Histogram stageLatency = new Histogram();
+		Histogram stageReplay = new Histogram();
+		Histogram latency = new Histogram();
+		Histogram replay = new Histogram();
+		long stageStart = System.nanoTime();
+		long stageMsends = msends.sum();
+		long stageDeliveries = deliveries();
+		long lastReport = stageStart;
+		long lastMsends = stageMsends;
+		long lastDeliveries = stageDeliveries;
+		long end = stageStart + DURATION_MS * 1000000;
+		while (System.nanoTime() < end) {
+			Thread.sleep(REPORT_MS);
+			latency.reset();
+			replay.reset();
+			for (Receiver receiver : receivers) {
+				receiver.drainInto(latency, replay);
+			}
+			stageLatency.add(latency);
+			stageReplay.add(replay);
+			long now = System.nanoTime();
+			long sent = msends.sum();
+			long delivered = deliveries();
+			System.out.println(String.format("%6.1fs online=%d msends/s=%d deliveries/s=%d latency %s replays %s",
+					(now - stageStart) / 1e9, online(), perSecond(sent - lastMsends, now - lastReport),
+					perSecond(delivered - lastDeliveries, now - lastReport), summary(latency), summary(replay)));
+			lastReport = now;
+			lastMsends = sent;
+			lastDeliveries = delivered;
+		}
+		long nanos = System.nanoTime() - stageStart;
+		System.out.println(String.format("Stage %d rate=%d msends/s=%d deliveries/s=%d latency %s replays %s", stage,
+				rate, perSecond(msends.sum() - stageMsends, nanos), perSecond(deliveries() - stageDeliveries, nanos),
+				summary(stageLatency), summary(stageReplay)));
+		totalLatency.add(stageLatency);
+		totalReplay.add(stageReplay);
+	}
+
+	private long deliveries() {
+		long sum = 0;
+		for (Receiver receiver : receivers) {
+			sum += receiver.deliveries();
+		}
+		return sum;
+	}
+
+	private int online() {
+		int online = 0;
+		for (SimulatedParticipant p : participants) {
+			if (p.online) {
+				online++;
+			}
+		}
+		return online;
+	}
+
+	private static long perSecond(long count, long nanos) {
+		return (long) (count * 1e9 / Math.max(1, nanos));
+	}
+
+	private static void start(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * A participant as the coordinator sees it. Its commands are sent by one
+	 * driver only, its msend connection is read by one receiver only.
+	 */
+	class SimulatedParticipant {
+
+		int id;
+		String group;
+		ServerSocketChannel listener;
+		Receiver receiver;
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		Frame reply = new Frame();
+
+		volatile boolean online;
+		boolean broken;
+
+		// Time the last reconnect was sent, 0 once the participant caught up
+		volatile long replayFrom;
+
+		SimulatedParticipant(int id, String group) {
+			this.id = id;
+			this.group = group;
+		}
+
+		void listen(Receiver receiver) throws IOException {
+			this.receiver = receiver;
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(HOST, 0));
+			listener.configureBlocking(false);
+			listener.register(receiver.selector, SelectionKey.OP_ACCEPT, this);
+		}
+
+		void connect() throws IOException {
+			socket = new Socket(coordinator.getAddress(), coordinator.getPort());
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(socket.getInputStream());
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (!in.readUTF().equals(Coordinator.PARTICIPANT_CONN_ACCEPT)) {
+				throw new IOException("Connection refused by the coordinator");
+			}
+			out.writeUTF(COMPRESSION ? Frame.NEGOTIATE + " " + Frame.COMPRESSION : Frame.NEGOTIATE);
+			out.flush();
+			String response = in.readUTF();
+			if (response.endsWith(Frame.COMPRESSED)) {
+				response = response.substring(0, response.length() - Frame.COMPRESSED.length());
+			}
+			acks = response.equals(Frame.BINARY_ACCEPTED_ACKS);
+			if (!acks && !response.equals(Frame.BINARY_ACCEPTED)) {
+				throw new IOException("Binary protocol refused: " + response);
+			}
+		}
+
+		void register() throws IOException {
+			online = request(Frame.REGISTER, 0, Frame.address(HOST, listener.socket().getLocalPort(), group),
+					CoordinatorWorker.PARTICIPANT_REGISTER_NOTIFICATION);
+		}
+
+		void deregister() throws IOException {
+			online = false;
+			request(Frame.DEREGISTER, 0, Frame.EMPTY, CoordinatorWorker.PARTICIPANT_DEREGISTER_NOTIFICATION);
+		}
+
+		void disconnect() throws IOException {
+			online = false;
+			request(Frame.DISCONNECT, 0, Frame.EMPTY, CoordinatorWorker.PARTICIPANT_DISCONNECT_NOTIFICATION);
+		}
+
+		void reconnect() throws IOException {
+			replayFrom = System.nanoTime();
+			online = request(Frame.RECONNECT, 0, Frame.address(HOST, listener.socket().getLocalPort()),
+					CoordinatorWorker.PARTICIPANT_RECONNECT_NOTIFICATION);
+		}
+
+		void msend(byte[] message) throws IOException {
+			if (request(Frame.MSEND, 0, message, CoordinatorWorker.PARTICIPANT_MSEND_NOTIFICATION)) {
+				msends.increment();
+			}
+		}
+
+		/*
+		 * Sends a command and waits for its reply. Returns false and counts an
+		 * error when the reply is not the expected one.
+		 */
+		private boolean request(byte opcode, long sequence, byte[] payload, String expected) throws IOException {
+			Frame.write(out, opcode, id, sequence, payload);
+			out.flush();
+			reply.read(in);
+			commands.increment();
+			if (reply.opcode != Frame.REPLY || !reply.payloadText().equals(expected)) {
+				errors.increment();
+				System.out.println("Participant " + id + ": " + reply.payloadText());
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Sends the commands of every DRIVERS-th participant, paced to its share of
+	 * the rate. A participant picked while OFFLINE reconnects, one that is
+	 * ONLINE multicasts, disconnects or deregisters and registers again.
+	 */
+	class Driver implements Runnable {
+
+		int index;
+		List<SimulatedParticipant> slice = new ArrayList<SimulatedParticipant>();
+		Random random;
+		byte[] message = new byte[MESSAGE_SIZE];
+
+		Driver(int index) {
+			this.index = index;
+			this.random = new Random(SEED + index);
+			for (int i = index; i < participants.length; i += DRIVERS) {
+				slice.add(participants[i]);
+			}
+			Arrays.fill(message, (byte) 'x');
+		}
+
+		@Override
+		public void run() {
+			int currentStage = 0;
+			long interval = 0;
+			long next = 0;
+			while (running && !slice.isEmpty()) {
+				if (currentStage != stage) {
+					currentStage = stage;
+					interval = rate > 0 ? (long) (1e9 * DRIVERS / rate) : 0;
+					next = System.nanoTime();
+				}
+				long scheduled;
+				if (interval > 0) {
+					long wait = next - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					scheduled = next;
+					next += interval;
+				} else {
+					scheduled = System.nanoTime();
+				}
+				SimulatedParticipant p = slice.get(random.nextInt(slice.size()));
+				if (p.broken) {
+					continue;
+				}
+				try {
+					step(p, scheduled);
+				} catch (IOException e) {
+					p.broken = true;
+					errors.increment();
+					System.out.println("Participant " + p.id + " lost its control connection: " + e.getMessage());
+				}
+			}
+		}
+
+		private void step(SimulatedParticipant p, long scheduled) throws IOException {
+			if (!p.online) {
+				p.reconnect();
+				return;
+			}
+			int roll = random.nextInt(100);
+			if (roll < DISCONNECT_PERCENT) {
+				p.disconnect();
+			} else if (roll < DISCONNECT_PERCENT + REREGISTER_PERCENT) {
+				p.deregister();
+				p.register();
+			} else {
+				p.msend(stamp(scheduled));
+			}
+		}
+
+		/*
+		 * The message is the send time in decimal digits followed by padding
+		 */
+		private byte[] stamp(long nanos) {
+			int at = 20;
+			message[at] = ' ';
+			for (int i = at - 1; i >= 0; i--) {
+				message[i] = (byte) ('0' + nanos % 10);
+				nanos /= 10;
+			}
+			return message;
+		}
+	}
+
+	/*
+	 * Accepts the msend connections of its participants and reads their
+	 * messages. Latencies are recorded under the receiver's lock and taken
+	 * over by the reporter.
+	 */
+	private static String summary(Histogram histogram) {
+		if (histogram.count() == 0) {
+			return "n=0";
+		}
+		return "n=" + histogram.count() + " p50=" + format(histogram.percentile(0.5)) + " p99="
+				+ format(histogram.percentile(0.99)) + " p999=" + format(histogram.percentile(0.999)) + " max="
+				+ format(histogram.maxMicros());
+	}
+
+	private static String format(long micros) {
+		return micros < 10000 ? micros + "us" : micros / 1000 + "ms";
+	}
+
+	class Receiver implements Runnable {
+
+		Selector selector;
+		Histogram latency = new Histogram();
+		Histogram replay = new Histogram();
+		long deliveries;
+		Frame frame = new Frame();
+		Frame batched = new Frame();
+		Inflater inflater = new Inflater();
+		ByteBuffer ack = ByteBuffer.allocate(4 + Frame.HEADER_SIZE);
+
+		Receiver() throws IOException {
+			selector = Selector.open();
+		}
+
+		synchronized long deliveries() {
+			return deliveries;
+		}
+
+		synchronized void drainInto(Histogram latencyTotal, Histogram replayTotal) {
+			latencyTotal.add(latency);
+			replayTotal.add(replay);
+			latency.reset();
+			replay.reset();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					selector.select();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept(key);
+						} else if (key.isReadable()) {
+							read(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void accept(SelectionKey key) throws IOException {
+			SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+			if (channel != null) {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new MSendConnection((SimulatedParticipant) key.attachment()));
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			MSendConnection connection = (MSendConnection) key.attachment();
+			int read;
+			try {
+				read = channel.read(connection.buffer);
+			} catch (IOException e) {
+				read = -1;
+			}
+			if (read < 0) {
+				// The coordinator closes the msend connection on disconnect and deregister
+				key.cancel();
+				channel.close();
+				return;
+			}
+			ByteBuffer buffer = connection.buffer;
+			buffer.flip();
+			long last = 0;
+			synchronized (this) {
+				while (frame.read(buffer)) {
+					if (frame.opcode == Frame.BATCH) {
+						ByteBuffer messages = frame.batchFrames(inflater);
+						while (batched.read(messages)) {
+							delivered(connection.participant, batched);
+						}
+					} else if (frame.opcode == Frame.MESSAGE) {
+						delivered(connection.participant, frame);
+					} else {
+						continue;
+					}
+					last = frame.sequence;
+				}
+			}
+			// A compressed batch can be larger than the buffer
+			int size = Frame.frameSize(buffer);
+			if (size > buffer.capacity()) {
+				connection.buffer = ByteBuffer.allocate(size).put(buffer);
+			} else {
+				buffer.compact();
+			}
+			if (acks && last > 0) {
+				ack.clear();
+				ack.putInt(Frame.HEADER_SIZE).put(Frame.VERSION).put(Frame.ACK).putInt(0).putLong(last).flip();
+				while (ack.hasRemaining()) {
+					channel.write(ack);
+				}
+			}
+		}
+
+		private void delivered(SimulatedParticipant p, Frame message) {
+			deliveries++;
+			delivered(p, sentAt(message), System.nanoTime());
+		}
+
+		/*
+		 * Messages sent before the participant reconnected are its backlog, the
+		 * first one sent after it ends the replay
+		 */
+		private void delivered(SimulatedParticipant p, long sent, long now) {
+			long replayFrom = p.replayFrom;
+			if (replayFrom != 0) {
+				if (sent < replayFrom) {
+					return;
+				}
+				p.replayFrom = 0;
+				replay.record(now - replayFrom);
+			}
+			latency.record(now - sent);
+		}
+
+		private long sentAt(Frame frame) {
+			long nanos = 0;
+			for (int i = 0; i < frame.payloadLength; i++) {
+				byte b = frame.payload[i];
+				if (b < '0' || b > '9') {
+					break;
+				}
+				nanos = nanos * 10 + (b - '0');
+			}
+			return nanos;
+		}
+	}
+
+	static class MSendConnection {
+
+		SimulatedParticipant participant;
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		MSendConnection(SimulatedParticipant participant) {
+			this.participant = participant;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Ships the write-ahead log of a primary coordinator to standby coordinators.
+ * A standby connects to coordinator.replication.port and gets the current
+ * state as snapshot records, followed by every record appended to the
+ * write-ahead log from then on, in the format of the segment files. When
+ * nothing is logged a heartbeat, a record of length 0, is sent every
+ * HEARTBEAT_MS so the standby can tell an idle primary from a failed one.
+ *
+ * Records are shipped after they are logged and without waiting for the
+ * standby, so the messages of the last moments before the primary fails may
+ * not have reached it.
+ */
+class LogShipper implements Runnable {
+
+	static final long HEARTBEAT_MS = 500;
+
+	// Records waiting for a standby. A standby that falls further behind is
+	// disconnected and starts over from a new snapshot when it reconnects.
+	static final int STANDBY_QUEUE_CAPACITY = Integer.getInteger("coordinator.replication.queue", 65536);
+
+	int port;
+	WriteAheadLog wal;
+	CopyOnWriteArrayList<Follower> followers = new CopyOnWriteArrayList<Follower>();
+
+	LogShipper(int port, WriteAheadLog wal) {
+		this.port = port;
+		this.wal = wal;
+	}
+
+	/*
+	 * Starts shipping when coordinator.replication.port is set, returns null
+	 * otherwise. Shipping needs the write-ahead log.
+	 */
+	static LogShipper start(WriteAheadLog wal) {
+		Integer port = Integer.getInteger("coordinator.replication.port");
+		if (port == null) {
+			return null;
+		}
+		if (wal == null) {
+			System.out.println("coordinator.replication.port needs coordinator.wal.dir, no standby can follow");
+			return null;
+		}
+		LogShipper shipper = new LogShipper(port, wal);
+		wal.shipper = shipper;
+		Thread thread = new Thread(shipper, "log-shipper");
+		thread.setDaemon(true);
+		thread.start();
+		return shipper;
+	}
+
+	/*
+	 * Queues an appended record for every standby. Called by the write-ahead
+	 * log while it holds its lock, so records are queued in log order.
+	 */
+	void ship(ByteArrayOutputStream body, int checksum) {
+		if (followers.isEmpty()) {
+			return;
+		}
+		byte[] record = new byte[8 + body.size()];
+		int length = body.size();
+		record[0] = (byte) (length >>> 24);
+		record[1] = (byte) (length >>> 16);
+		record[2] = (byte) (length >>> 8);
+		record[3] = (byte) length;
+		record[4] = (byte) (checksum >>> 24);
+		record[5] = (byte) (checksum >>> 16);
+		record[6] = (byte) (checksum >>> 8);
+		record[7] = (byte) checksum;
+		System.arraycopy(body.toByteArray(), 0, record, 8, length);
+		for (Follower follower : followers) {
+			follower.offer(record);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			ServerSocket serverSocket = new ServerSocket(port);
+			while (true) {
+				Socket socket = serverSocket.accept();
+				System.out.println("Standby coordinator following: " + socket);
+				Follower follower = new Follower(socket);
+				// Records logged from now on are queued, the state sent first covers the ones before
+				synchronized (wal) {
+					followers.add(follower);
+				}
+				Thread thread = new Thread(follower, "log-shipper-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * One standby and the records waiting for it
+	 */
+	class Follower implements Runnable {
+
+		Socket socket;
+		BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(STANDBY_QUEUE_CAPACITY);
+		volatile boolean overrun;
+
+		Follower(Socket socket) {
+			this.socket = socket;
+		}
+
+		void offer(byte[] record) {
+			if (!overrun && !queue.offer(record)) {
+				overrun = true;
+			}
+		}
+
+		/*
+		 * Sends the state, then the queued records as they come
+		 */
+		@Override
+		public void run() {
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+				WriteAheadLog.State.capture().writeTo(out);
+				out.flush();
+				while (!overrun) {
+					byte[] record = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+					if (record == null) {
+						out.writeInt(0);
+						out.writeInt(0);
+					}
+					while (record != null) {
+						out.write(record);
+						record = queue.poll();
+					}
+					out.flush();
+				}
+				System.out.println("Standby coordinator " + socket + " fell behind, it has to follow again");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				System.out.println("Standby coordinator " + socket + " stopped following (" + e.getMessage() + ")");
+			} finally {
+				followers.remove(this);
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A connection used to deliver multicast messages to one participant. The
+ * link drains the participant's outbound queue and moves the participant's
+ * cursor past every message it wrote.
+ */
+interface MSendLink {
+
+	// Messages written to the connection before it is flushed
+	int WRITE_BATCH = 1024;
+
+	/*
+	 * Optional coalescing of messages multicast close together. A link that has
+	 * fewer than COALESCE_MAX messages to write waits up to COALESCE_DELAY
+	 * nanoseconds for more so that they go out in one write. Off when the delay
+	 * is 0.
+	 */
+	long COALESCE_DELAY = TimeUnit.MICROSECONDS.toNanos(Long.getLong("coordinator.coalesce.delayMicros", 0));
+	int COALESCE_MAX = Math.min(WRITE_BATCH, Integer.getInteger("coordinator.coalesce.maxMessages", 64));
+
+	// writeUTF cannot carry messages over 64 KB, only the binary protocol can
+	String TOO_LONG_FOR_TEXT = "Message too long for a participant using the text protocol, skipped message ";
+
+	void enqueue(MessageBean message) throws InterruptedException;
+
+	/*
+	 * Stops writing and closes the connection
+	 */
+	void close();
+
+	/*
+	 * Stops taking messages, writes the frame after the messages already being
+	 * written and closes the connection, see Cluster
+	 */
+	void handOff(ByteBuffer frame);
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/*
+ * This class contains message information
+ */
+class MessageBean {
+
+	private int participantId;
+	private String message;
+	private long timestamp;
+	private long sequence;
+
+	// The message as written to msend connections, encoded once for all recipients
+	private volatile ByteBuffer frame;
+	private volatile ByteBuffer utf;
+
+	// Cached in place of the text encoding of a message over 64 KB
+	private static final ByteBuffer TOO_LONG = ByteBuffer.allocate(0);
+
+	MessageBean(int participantId, String message) {
+		this.participantId = participantId;
+		this.message = message;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	public int getParticipantId() {
+		return participantId;
+	}
+
+	public void setParticipantId(int participantId) {
+		this.participantId = participantId;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * The message as written to a participant's msend connection, a binary
+	 * MESSAGE frame or a writeUTF string. It is encoded on first use and shared
+	 * by all recipients; every call returns a read-only view with a position of
+	 * its own, so links write the same bytes without copying them. Returns null
+	 * when the message is too long for the text protocol.
+	 */
+	public ByteBuffer encoded(boolean binary) throws IOException {
+		ByteBuffer encoded = binary ? frame : utf;
+		if (encoded == null) {
+			encoded = binary ? encodeFrame() : encodeUTF();
+		}
+		return encoded == TOO_LONG ? null : encoded.asReadOnlyBuffer();
+	}
+
+	private ByteBuffer encodeFrame() {
+		ByteBuffer encoded = Frame.encode(Frame.MESSAGE, participantId, sequence, Frame.text(message));
+		frame = encoded;
+		return encoded;
+	}
+
+	private ByteBuffer encodeUTF() throws IOException {
+		ByteBuffer encoded;
+		try {
+			encoded = NioCoordinator.encodeUTF(message);
+		} catch (UTFDataFormatException e) {
+			encoded = TOO_LONG;
+		}
+		utf = encoded;
+		return encoded;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Background sweeper that evicts messages past the threshold from the message
+ * logs of all groups. Without it a message is only dropped once every
+ * participant got past it, so a participant that stays offline would keep
+ * every message multicast since it left. With the sweeper the log holds at
+ * most the messages of the last threshold seconds.
+ */
+class MessageExpiry implements Runnable {
+
+	// How often the log is swept, coordinator.expiryIntervalMs
+	long intervalMs;
+
+	MessageExpiry(long intervalMs) {
+		this.intervalMs = intervalMs;
+	}
+
+	static void start() {
+		Thread thread = new Thread(new MessageExpiry(Long.getLong("coordinator.expiryIntervalMs", 1000)),
+				"message-expiry");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(intervalMs);
+			} catch (InterruptedException e) {
+				return;
+			}
+			int count = sweep(System.currentTimeMillis());
+			if (count > 0) {
+				long evicted = 0;
+				long kept = 0;
+				for (Group group : Group.all()) {
+					evicted += group.messageLog.evicted();
+					kept += group.messageLog.size();
+				}
+				System.out.println("Expired " + count + " messages, " + evicted + " since start, " + kept + " kept");
+			}
+		}
+	}
+
+	/*
+	 * Evicts every message with (now - timestamp) / 1000 > threshold, the same
+	 * test the coordinator applies before delivering a message
+	 */
+	static int sweep(long now) {
+		int count = 0;
+		for (Group group : Group.all()) {
+			count += group.messageLog.expire(cutoff(now));
+		}
+		return count;
+	}
+
+	/*
+	 * Oldest timestamp of a message that is still within the threshold at now
+	 */
+	static long cutoff(long now) {
+		return now - (Coordinator.threshold + 1) * 1000 + 1;
+	}
+}
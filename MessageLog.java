@@ -0,0 +1,486 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Append-only log of the multicast messages, shared by all participants.
+ * Every message gets the next sequence number and is stored once, in fixed
+ * size segments. Participants only remember the last sequence delivered to
+ * them, so the backlog of a participant that is offline is a range of this log.
+ * Full segments can be spilled to memory-mapped files to keep the heap within
+ * a budget, see BacklogSpill; they are read from there the same way.
+ */
+class MessageLog {
+
+	// Number of messages in one segment
+	static final int SEGMENT_SIZE = 1024;
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	// Names the spill files of this log
+	final int id = nextId.incrementAndGet();
+
+	private List<Segment> segments = new ArrayList<Segment>();
+	private long nextSequence = 1;
+	private long evicted;
+
+	// Size of all messages ever added, in characters, see bytesAfter
+	private long appendedBytes;
+
+	/*
+	 * Appends the message and returns the sequence number it was given
+	 */
+	public synchronized long append(MessageBean message) {
+		message.setSequence(nextSequence);
+		addEntry(message);
+		return message.getSequence();
+	}
+
+	/*
+	 * Puts a message back at the sequence number it had before the coordinator
+	 * restarted. Sequence numbers of messages that were not kept, including a null
+	 * message, are left empty.
+	 */
+	public synchronized void restore(long sequence, MessageBean message) {
+		if (sequence < nextSequence) {
+			return;
+		}
+		if (segments.isEmpty()) {
+			nextSequence = sequence;
+		}
+		while (nextSequence < sequence) {
+			addEntry(null);
+		}
+		if (message == null && segments.isEmpty()) {
+			nextSequence++;
+			return;
+		}
+		if (message != null) {
+			message.setSequence(sequence);
+		}
+		addEntry(message);
+	}
+
+	private void addEntry(MessageBean message) {
+		Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (tail == null || tail.isFull()) {
+			Segment previous = tail;
+			tail = new Segment(nextSequence, appendedBytes);
+			if (previous != null) {
+				tail.newestTimestamp = previous.newestTimestamp;
+			}
+			segments.add(tail);
+		}
+		if (message != null) {
+			appendedBytes += message.getMessage().length();
+		}
+		tail.add(message, appendedBytes);
+		nextSequence++;
+		if (tail.isFull() && BacklogSpill.segmentFilled()) {
+			try {
+				spillOldest(BacklogSpill.directory);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Sequence number of the newest message, 0 when nothing was logged yet
+	 */
+	public synchronized long lastSequence() {
+		return nextSequence - 1;
+	}
+
+	/*
+	 * Sequence number of the oldest message still kept
+	 */
+	public synchronized long firstSequence() {
+		return segments.isEmpty() ? nextSequence : segments.get(0).baseSequence;
+	}
+
+	/**
+	 * Copies the messages from fromSequence up to and including toSequence into
+	 * out, at most max of them. Messages that were already trimmed or not kept
+	 * over a restart are skipped. Returns the number of messages copied.
+	 */
+	public synchronized int read(long fromSequence, long toSequence, int max, List<MessageBean> out) {
+		if (segments.isEmpty()) {
+			return 0;
+		}
+		long from = Math.max(fromSequence, segments.get(0).baseSequence);
+		long to = Math.min(toSequence, nextSequence - 1);
+		int copied = 0;
+		int index = segmentIndex(from);
+		while (from <= to && copied < max && index < segments.size()) {
+			Segment segment = segments.get(index);
+			int offset = (int) (from - segment.baseSequence);
+			while (offset < segment.count && from <= to && copied < max) {
+				MessageBean m = segment.get(offset++);
+				from++;
+				if (m != null) {
+					out.add(m);
+					copied++;
+				}
+			}
+			index++;
+		}
+		return copied;
+	}
+
+	/**
+	 * Returns the sequence number of the first message kept with a timestamp of
+	 * at least timestamp, or the next sequence number when there is none. The
+	 * segment is found by binary search over the newest timestamps of the
+	 * segments, so the cost does not depend on how many messages are older.
+	 */
+	public synchronized long seek(long timestamp) {
+		int low = 0;
+		int high = segments.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (segments.get(middle).newestTimestamp < timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		if (low == segments.size()) {
+			return nextSequence;
+		}
+		Segment segment = segments.get(low);
+		for (int offset = segment.expired; offset < segment.count; offset++) {
+			if (segment.present(offset) && segment.timestamp(offset) >= timestamp) {
+				return segment.baseSequence + offset;
+			}
+		}
+		return segment.lastSequence() + 1;
+	}
+
+	/*
+	 * Drops every segment whose messages all have a sequence number of at most
+	 * sequence. Called once every participant has got past them.
+	 */
+	public synchronized void trimTo(long sequence) {
+		int drop = 0;
+		while (drop < segments.size() && segments.get(drop).isFull() && segments.get(drop).lastSequence() <= sequence) {
+			drop++;
+		}
+		if (drop > 0) {
+			for (int i = 0; i < drop; i++) {
+				segments.get(i).release();
+			}
+			segments.subList(0, drop).clear();
+		}
+	}
+
+	/*
+	 * Drops every segment, with its spill file
+	 */
+	public synchronized void clear() {
+		for (Segment segment : segments) {
+			segment.release();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Evicts the messages with a timestamp before expireBefore. Segments that
+	 * hold only such messages are dropped, in the oldest remaining segment the
+	 * expired entries are cleared so that their sequence numbers stay empty.
+	 * Returns the number of messages evicted.
+	 */
+	public synchronized int expire(long expireBefore) {
+		int count = 0;
+		while (!segments.isEmpty() && segments.get(0).newestTimestamp < expireBefore) {
+			// Only the last segment can be partly filled, so sequence numbers stay aligned
+			Segment segment = segments.get(0);
+			count += segment.live;
+			segment.release();
+			segments.remove(0);
+		}
+		if (!segments.isEmpty()) {
+			Segment head = segments.get(0);
+			while (head.expired < head.count) {
+				if (head.present(head.expired)) {
+					if (head.timestamp(head.expired) >= expireBefore) {
+						break;
+					}
+					head.clear(head.expired);
+					count++;
+				}
+				head.expired++;
+			}
+		}
+		evicted += count;
+		return count;
+	}
+
+	/*
+	 * Number of messages evicted by expire since the coordinator started
+	 */
+	public synchronized long evicted() {
+		return evicted;
+	}
+
+	/*
+	 * Number of messages currently kept in the log
+	 */
+	public synchronized long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.live;
+		}
+		return size;
+	}
+
+	/*
+	 * Size of the messages kept after sequence, counting a character as a
+	 * byte. Messages trimmed or expired within a segment still count.
+	 */
+	public synchronized long bytesAfter(long sequence) {
+		if (segments.isEmpty() || sequence >= nextSequence - 1) {
+			return 0;
+		}
+		Segment first = segments.get(0);
+		if (sequence < first.baseSequence) {
+			return appendedBytes - first.startBytes;
+		}
+		Segment segment = segments.get(segmentIndex(sequence));
+		return appendedBytes - segment.endBytes((int) (sequence - segment.baseSequence));
+	}
+
+	/**
+	 * Moves the oldest full segment that is still on the heap to a spill file
+	 * in directory. The segment being filled stays on the heap, and so does a
+	 * segment too large for one mapping. Returns the estimated heap bytes freed,
+	 * 0 when there is nothing to spill.
+	 */
+	public synchronized long spillOldest(File directory) throws IOException {
+		for (int i = 0; i < segments.size() - 1; i++) {
+			Segment segment = segments.get(i);
+			if (!segment.isSpilled() && !segment.tooLarge) {
+				return segment.spill(new File(directory, "log" + id + "-" + segment.baseSequence + ".seg"));
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Number of segments kept in spill files
+	 */
+	public synchronized int spilledSegments() {
+		int spilled = 0;
+		for (Segment segment : segments) {
+			if (segment.isSpilled()) {
+				spilled++;
+			}
+		}
+		return spilled;
+	}
+
+	private int segmentIndex(long sequence) {
+		return (int) ((sequence - segments.get(0).baseSequence) / SEGMENT_SIZE);
+	}
+
+	/**
+	 * SEGMENT_SIZE consecutive messages starting at baseSequence. A segment is on
+	 * the heap while it fills up. Once full it may be spilled to a memory-mapped
+	 * file, which holds an index of the entries followed by the entries, so that
+	 * every entry is read from the file without anything left on the heap:
+	 *
+	 * int position of every entry, long endBytes of every entry, then per entry
+	 * long timestamp, int participant id, int length or -1 when cleared, and the
+	 * message in UTF-8
+	 */
+	static class Segment {
+
+		// Position of the length in an entry of a spill file
+		static final int LENGTH_OFFSET = 12;
+
+		long baseSequence;
+		MessageBean[] entries = new MessageBean[SEGMENT_SIZE];
+		int count;
+
+		// Messages not cleared yet
+		int live;
+
+		// Newest timestamp in this segment or any before it, which keeps the
+		// value ordered across segments even if messages are logged slightly out
+		// of timestamp order
+		long newestTimestamp = Long.MIN_VALUE;
+
+		// Entries before this offset were already checked by expire
+		int expired;
+
+		// appendedBytes of the log before the first entry and after each entry
+		long startBytes;
+		long[] endBytes = new long[SEGMENT_SIZE];
+
+		// Estimated heap taken by the messages, see BacklogSpill
+		long heapBytes;
+
+		// Set once the entries are in a spill file instead of entries and endBytes
+		File file;
+		MappedByteBuffer mapped;
+
+		// Set when the spill file would exceed the 2 GB a mapping can hold
+		boolean tooLarge;
+
+		Segment(long baseSequence, long startBytes) {
+			this.baseSequence = baseSequence;
+			this.startBytes = startBytes;
+		}
+
+		boolean isFull() {
+			return count == SEGMENT_SIZE;
+		}
+
+		boolean isSpilled() {
+			return mapped != null;
+		}
+
+		void add(MessageBean message, long bytes) {
+			endBytes[count] = bytes;
+			entries[count++] = message;
+			if (message != null) {
+				live++;
+				newestTimestamp = Math.max(newestTimestamp, message.getTimestamp());
+				long footprint = BacklogSpill.footprint(message);
+				heapBytes += footprint;
+				BacklogSpill.heapBytes.addAndGet(footprint);
+			}
+		}
+
+		long lastSequence() {
+			return baseSequence + count - 1;
+		}
+
+		/*
+		 * The message at offset, null when it was cleared or never kept. Read from
+		 * the spill file into a new MessageBean when the segment is spilled.
+		 */
+		MessageBean get(int offset) {
+			if (!isSpilled()) {
+				return entries[offset];
+			}
+			int position = mapped.getInt(offset * 4);
+			int length = mapped.getInt(position + LENGTH_OFFSET);
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			mapped.get(position + LENGTH_OFFSET + 4, bytes);
+			MessageBean m = new MessageBean(mapped.getInt(position + 8), new String(bytes, StandardCharsets.UTF_8));
+			m.setTimestamp(mapped.getLong(position));
+			m.setSequence(baseSequence + offset);
+			return m;
+		}
+
+		boolean present(int offset) {
+			if (!isSpilled()) {
+				return entries[offset] != null;
+			}
+			return mapped.getInt(mapped.getInt(offset * 4) + LENGTH_OFFSET) >= 0;
+		}
+
+		long timestamp(int offset) {
+			if (!isSpilled()) {
+				return entries[offset].getTimestamp();
+			}
+			return mapped.getLong(mapped.getInt(offset * 4));
+		}
+
+		long endBytes(int offset) {
+			if (!isSpilled()) {
+				return endBytes[offset];
+			}
+			return mapped.getLong(count * 4 + offset * 8);
+		}
+
+		void clear(int offset) {
+			if (isSpilled()) {
+				mapped.putInt(mapped.getInt(offset * 4) + LENGTH_OFFSET, -1);
+			} else {
+				long footprint = BacklogSpill.footprint(entries[offset]);
+				heapBytes -= footprint;
+				BacklogSpill.heapBytes.addAndGet(-footprint);
+				entries[offset] = null;
+			}
+			live--;
+		}
+
+		/*
+		 * Writes the entries to file, maps it and drops them from the heap.
+		 * Returns the estimated heap bytes freed, 0 when the segment is too
+		 * large to be mapped and stays on the heap.
+		 */
+		long spill(File spillFile) throws IOException {
+			byte[][] messages = new byte[count][];
+			long size = count * 12L;
+			for (int i = 0; i < count; i++) {
+				if (entries[i] != null) {
+					messages[i] = entries[i].getMessage().getBytes(StandardCharsets.UTF_8);
+				}
+				size += LENGTH_OFFSET + 4 + (messages[i] != null ? messages[i].length : 0);
+			}
+			if (size > Integer.MAX_VALUE) {
+				tooLarge = true;
+				System.out.println("Segment at " + baseSequence + " needs " + size / (1024 * 1024)
+						+ " MB, more than one spill file maps, and stays on the heap");
+				return 0;
+			}
+			RandomAccessFile out = new RandomAccessFile(spillFile, "rw");
+			MappedByteBuffer map;
+			try {
+				out.setLength(size);
+				map = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				// The mapping stays valid after the file is closed
+				out.close();
+			}
+			int position = count * 12;
+			for (int i = 0; i < count; i++) {
+				map.putInt(i * 4, position);
+				map.putLong(count * 4 + i * 8, endBytes[i]);
+				map.position(position);
+				if (messages[i] == null) {
+					map.putLong(0).putInt(0).putInt(-1);
+				} else {
+					map.putLong(entries[i].getTimestamp()).putInt(entries[i].getParticipantId())
+							.putInt(messages[i].length).put(messages[i]);
+				}
+				position = map.position();
+			}
+			file = spillFile;
+			mapped = map;
+			entries = null;
+			endBytes = null;
+			long freed = heapBytes;
+			heapBytes = 0;
+			BacklogSpill.heapBytes.addAndGet(-freed);
+			return freed;
+		}
+
+		/*
+		 * The segment is dropped from the log
+		 */
+		void release() {
+			if (isSpilled()) {
+				mapped = null;
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			} else {
+				BacklogSpill.heapBytes.addAndGet(-heapBytes);
+				heapBytes = 0;
+			}
+		}
+	}
+}
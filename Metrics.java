@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Metrics of the coordinator, readable over JMX as Coordinator:type=Metrics
+ * and, with coordinator.metrics.port, as text from a local HTTP endpoint in the
+ * Prometheus format. Counters and histograms are updated where things happen
+ * without allocating; everything per participant is collected when the
+ * metrics are read.
+ */
+class Metrics implements CoordinatorMetricsMXBean {
+
+	static final String OBJECT_NAME = "Coordinator:type=Metrics";
+	static final String PATH = "/metrics";
+
+	// Time a multicast message takes to be queued for all ONLINE members of its group
+	static final Histogram fanOut = new Histogram();
+
+	// Time from taking a batch to having written it, over all msend connections
+	static final Histogram write = new Histogram();
+
+	// Time from a reconnect until the backlog is written
+	static final Histogram replay = new Histogram();
+	static final LongAdder replayedMessages = new LongAdder();
+
+	static final LongAdder msends = new LongAdder();
+
+	// Messages of a backlog left out because they were past the threshold
+	// before the expiry swept them
+	static final LongAdder skippedExpired = new LongAdder();
+
+	// Batches written compressed, the bytes of their frames and of the BATCH frames
+	static final LongAdder compressedBatches = new LongAdder();
+	static final LongAdder compressedBytes = new LongAdder();
+	static final LongAdder compressedWireBytes = new LongAdder();
+
+	// Participants taken out of the fan-out as too slow, put back and dropped, see SlowConsumers
+	static final LongAdder demotions = new LongAdder();
+	static final LongAdder promotions = new LongAdder();
+	static final LongAdder droppedSlowConsumers = new LongAdder();
+
+	// Workers servicing control connections and their limit, 0 with virtual threads
+	static final AtomicInteger activeWorkers = new AtomicInteger();
+	static volatile int maxThreads;
+	static final LongAdder rejectedConnections = new LongAdder();
+
+	/*
+	 * Registers the MXBean and starts the HTTP endpoint when a port is set
+	 */
+	static void start() {
+		Metrics metrics = new Metrics();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		Integer port = Integer.getInteger("coordinator.metrics.port");
+		if (port == null) {
+			return;
+		}
+		try {
+			String host = System.getProperty("coordinator.metrics.host", "127.0.0.1");
+			HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+			server.createContext(PATH, metrics.new Endpoint());
+			server.start();
+			System.out.println("Metrics on http://" + host + ":" + server.getAddress().getPort() + PATH);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Summary of a histogram as a JMX attribute
+	 */
+	static Map<String, Long> summary(Histogram histogram) {
+		Map<String, Long> summary = new LinkedHashMap<String, Long>();
+		summary.put("count", histogram.count());
+		summary.put("p50", histogram.percentile(0.5));
+		summary.put("p99", histogram.percentile(0.99));
+		summary.put("p999", histogram.percentile(0.999));
+		summary.put("max", histogram.maxMicros());
+		return summary;
+	}
+
+	/*
+	 * Messages the participant has not got yet that are still within the
+	 * threshold, from its cursor or the oldest such message to the end of its
+	 * group's log
+	 */
+	static long backlogFrom(Coordinator.MSendParticipant p) {
+		long unexpired = p.group.messageLog.seek(MessageExpiry.cutoff(System.currentTimeMillis()));
+		return Math.max(p.getCursor(), unexpired - 1);
+	}
+
+	@Override
+	public long getMSends() {
+		return msends.sum();
+	}
+
+	@Override
+	public Map<String, Long> getFanOutLatencyMicros() {
+		return summary(fanOut);
+	}
+
+	@Override
+	public Map<String, Long> getWriteLatencyMicros() {
+		return summary(write);
+	}
+
+	@Override
+	public Map<String, Long> getReplayDurationMicros() {
+		return summary(replay);
+	}
+
+	@Override
+	public long getReplayedMessages() {
+		return replayedMessages.sum();
+	}
+
+	/*
+	 * Messages per second over all replays so far
+	 */
+	@Override
+	public long getReplayRate() {
+		long micros = replay.sumMicros();
+		return micros == 0 ? 0 : (long) (replayedMessages.sum() * 1e6 / micros);
+	}
+
+	@Override
+	public long getExpiredMessages() {
+		long expired = 0;
+		for (Group group : Group.all()) {
+			expired += group.messageLog.evicted();
+		}
+		return expired;
+	}
+
+	@Override
+	public long getBacklogHeapBytes() {
+		return BacklogSpill.heapBytes.get();
+	}
+
+	@Override
+	public long getSpilledSegments() {
+		long spilled = 0;
+		for (Group group : Group.all()) {
+			spilled += group.messageLog.spilledSegments();
+		}
+		return spilled;
+	}
+
+	@Override
+	public long getCompressedBatches() {
+		return compressedBatches.sum();
+	}
+
+	@Override
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	@Override
+	public long getCompressedWireBytes() {
+		return compressedWireBytes.sum();
+	}
+
+	@Override
+	public long getDemotions() {
+		return demotions.sum();
+	}
+
+	@Override
+	public long getPromotions() {
+		return promotions.sum();
+	}
+
+	@Override
+	public long getDroppedSlowConsumers() {
+		return droppedSlowConsumers.sum();
+	}
+
+	@Override
+	public int getBufferedParticipants() {
+		int buffered = 0;
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			if (p.buffered && p.getStatus() == ParticipantStatus.ONLINE) {
+				buffered++;
+			}
+		}
+		return buffered;
+	}
+
+	@Override
+	public long getSkippedExpiredMessages() {
+		return skippedExpired.sum();
+	}
+
+	@Override
+	public int getActiveWorkers() {
+		return activeWorkers.get();
+	}
+
+	@Override
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return rejectedConnections.sum();
+	}
+
+	@Override
+	public Map<String, Long> getBacklogMessages() {
+		Map<String, Long> backlogs = new LinkedHashMap<String, Long>();
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			backlogs.put(String.valueOf(p.getParticipantID()), Math.max(0, p.group.messageLog.lastSequence()
+					- backlogFrom(p)));
+		}
+		return backlogs;
+	}
+
+	@Override
+	public Map<String, Long> getBacklogBytes() {
+		Map<String, Long> backlogs = new LinkedHashMap<String, Long>();
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			backlogs.put(String.valueOf(p.getParticipantID()), p.group.messageLog.bytesAfter(backlogFrom(p)));
+		}
+		return backlogs;
+	}
+
+	@Override
+	public Map<String, Long> getOutboundQueueDepths() {
+		Map<String, Long> depths = new LinkedHashMap<String, Long>();
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			depths.put(String.valueOf(p.getParticipantID()), (long) p.outboundQueue.size());
+		}
+		return depths;
+	}
+
+	@Override
+	public Map<String, Long> getMaxWriteLatencyMicros() {
+		Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			latencies.put(String.valueOf(p.getParticipantID()), p.maxWriteNanos / 1000);
+		}
+		return latencies;
+	}
+
+	/*
+	 * Writes all metrics in the Prometheus text format
+	 */
+	String render() {
+		StringBuilder out = new StringBuilder();
+		counter(out, "coordinator_msends_total", msends.sum());
+		histogram(out, "coordinator_fanout_latency_microseconds", fanOut);
+		histogram(out, "coordinator_write_latency_microseconds", write);
+		histogram(out, "coordinator_replay_duration_microseconds", replay);
+		counter(out, "coordinator_replayed_messages_total", replayedMessages.sum());
+		gauge(out, "coordinator_replay_rate_messages_per_second", getReplayRate());
+		counter(out, "coordinator_expired_messages_total", getExpiredMessages());
+		counter(out, "coordinator_skipped_expired_messages_total", skippedExpired.sum());
+		gauge(out, "coordinator_backlog_heap_bytes", getBacklogHeapBytes());
+		gauge(out, "coordinator_backlog_spilled_segments", getSpilledSegments());
+		counter(out, "coordinator_compressed_batches_total", compressedBatches.sum());
+		counter(out, "coordinator_compressed_bytes_total", compressedBytes.sum());
+		counter(out, "coordinator_compressed_wire_bytes_total", compressedWireBytes.sum());
+		counter(out, "coordinator_slow_consumer_demotions_total", demotions.sum());
+		counter(out, "coordinator_slow_consumer_promotions_total", promotions.sum());
+		counter(out, "coordinator_slow_consumer_drops_total", droppedSlowConsumers.sum());
+		gauge(out, "coordinator_participants_buffered", getBufferedParticipants());
+		gauge(out, "coordinator_workers_active", activeWorkers.get());
+		gauge(out, "coordinator_workers_max", maxThreads);
+		counter(out, "coordinator_connections_rejected_total", rejectedConnections.sum());
+
+		// Families of samples stay together, so every family gets a pass over the participants
+		Coordinator.MSendParticipant[] members = Coordinator.participants.members();
+		String[] labels = new String[members.length];
+		long[] backlogFrom = new long[members.length];
+		for (int i = 0; i < members.length; i++) {
+			Coordinator.MSendParticipant p = members[i];
+			labels[i] = "{participant=\"" + p.getParticipantID() + "\",group=\"" + p.group.name + "\",status=\""
+					+ p.getStatus() + "\"} ";
+			backlogFrom[i] = backlogFrom(p);
+		}
+		out.append("# TYPE coordinator_participant_backlog_messages gauge\n");
+		for (int i = 0; i < members.length; i++) {
+			long backlog = Math.max(0, members[i].group.messageLog.lastSequence() - backlogFrom[i]);
+			out.append("coordinator_participant_backlog_messages").append(labels[i]).append(backlog).append('\n');
+		}
+		out.append("# TYPE coordinator_participant_backlog_bytes gauge\n");
+		for (int i = 0; i < members.length; i++) {
+			long bytes = members[i].group.messageLog.bytesAfter(backlogFrom[i]);
+			out.append("coordinator_participant_backlog_bytes").append(labels[i]).append(bytes).append('\n');
+		}
+		out.append("# TYPE coordinator_participant_outbound_queue gauge\n");
+		for (int i = 0; i < members.length; i++) {
+			out.append("coordinator_participant_outbound_queue").append(labels[i])
+					.append(members[i].outboundQueue.size()).append('\n');
+		}
+		out.append("# TYPE coordinator_participant_writes_total counter\n");
+		for (int i = 0; i < members.length; i++) {
+			out.append("coordinator_participant_writes_total").append(labels[i]).append(members[i].writes).append('\n');
+		}
+		out.append("# TYPE coordinator_participant_write_latency_microseconds_total counter\n");
+		for (int i = 0; i < members.length; i++) {
+			out.append("coordinator_participant_write_latency_microseconds_total").append(labels[i])
+					.append(members[i].writeNanos / 1000).append('\n');
+		}
+		out.append("# TYPE coordinator_participant_write_latency_max_microseconds gauge\n");
+		for (int i = 0; i < members.length; i++) {
+			out.append("coordinator_participant_write_latency_max_microseconds").append(labels[i])
+					.append(members[i].maxWriteNanos / 1000).append('\n');
+		}
+		return out.toString();
+	}
+
+	private static void counter(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder out, String name, Histogram histogram) {
+		out.append("# TYPE ").append(name).append(" summary\n");
+		double[] quantiles = { 0.5, 0.99, 0.999, 1 };
+		for (double quantile : quantiles) {
+			long value = quantile == 1 ? histogram.maxMicros() : histogram.percentile(quantile);
+			out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(value).append('\n');
+		}
+		out.append(name).append("_sum ").append(histogram.sumMicros()).append('\n');
+		out.append(name).append("_count ").append(histogram.count()).append('\n');
+	}
+
+	class Endpoint implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			byte[] body = render().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,720 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Networking engine for the coordinator built on non-blocking channels.
+ * Control connections and msend connections of all participants are served by
+ * a few event loop threads, so there is no limit on the number of connected
+ * participants.
+ */
+public class NioCoordinator implements Runnable {
+
+	int portNo;
+	EventLoop[] eventLoops;
+	AtomicInteger nextLoop = new AtomicInteger();
+
+	public NioCoordinator(int portNo, int eventLoopCount) {
+		this.portNo = portNo;
+		this.eventLoops = new EventLoop[eventLoopCount];
+		Coordinator.nioCoordinator = this;
+	}
+
+	/**
+	 * The acceptor waits for participants to connect and hands every connection
+	 * to one of the event loops in turn.
+	 */
+	@Override
+	public void run() {
+		ServerSocketChannel serverChannel = null;
+		try {
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new EventLoop("coordinator-loop-" + i);
+				eventLoops[i].start();
+			}
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(portNo));
+
+			while (true) {
+				System.out.println(Coordinator.COORDINATOR_WAIT_MSG);
+				SocketChannel channel = serverChannel.accept();
+				System.out.println("Connected to participant: " + channel.socket());
+				channel.configureBlocking(false);
+				final NioControlSession session = new NioControlSession(channel, nextEventLoop());
+				session.loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						session.open();
+					}
+				});
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (serverChannel != null) {
+					serverChannel.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	EventLoop nextEventLoop() {
+		return eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+	}
+
+	MSendLink openMSendLink(Coordinator.MSendParticipant participant) throws IOException {
+		return new NioMSendLink(participant, nextEventLoop());
+	}
+
+	/*
+	 * Encodes a string the same way DataOutputStream.writeUTF does, so that
+	 * participants can keep reading with DataInputStream.readUTF
+	 */
+	static void encodeUTF(String message, DataOutputStream out) throws IOException {
+		out.writeUTF(message);
+	}
+
+	static ByteBuffer encodeUTF(String message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+		encodeUTF(message, new DataOutputStream(bytes));
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+}
+
+/*
+ * Implemented by everything attached to a selection key of an event loop
+ */
+interface NioHandler {
+
+	void handle(SelectionKey key) throws IOException;
+
+	void closeChannel();
+}
+
+/*
+ * A selector thread. Work for the channels of this loop submitted from other
+ * threads goes through execute so that it runs on the loop itself.
+ */
+class EventLoop extends Thread {
+
+	Selector selector;
+	ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	// Delayed tasks ordered by due time, only touched by the loop itself
+	PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<ScheduledTask>();
+
+	EventLoop(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != this) {
+			selector.wakeup();
+		}
+	}
+
+	/*
+	 * Runs the task on the loop after delayNanos. The selector times out in whole
+	 * milliseconds, so shorter delays are rounded up to one.
+	 */
+	void schedule(final Runnable task, long delayNanos) {
+		final long due = System.nanoTime() + delayNanos;
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				scheduled.add(new ScheduledTask(due, task));
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				// Tasks the loop submitted to itself must not wait for the next event
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if (scheduled.isEmpty()) {
+					selector.select();
+				} else {
+					long wait = scheduled.peek().due - System.nanoTime();
+					if (wait > 0) {
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+					} else {
+						selector.selectNow();
+					}
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					runTask(task);
+				}
+				long now = System.nanoTime();
+				while (!scheduled.isEmpty() && scheduled.peek().due - now <= 0) {
+					runTask(scheduled.poll().task);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioHandler handler = (NioHandler) key.attachment();
+					try {
+						handler.handle(key);
+					} catch (CancelledKeyException e) {
+						handler.closeChannel();
+					} catch (IOException e) {
+						handler.closeChannel();
+					} catch (RuntimeException e) {
+						// Only this connection is lost, like a worker thread of the blocking engine
+						e.printStackTrace();
+						handler.closeChannel();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * A failing task must not take the loop, and every other channel on it, down
+	 */
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+class ScheduledTask implements Comparable<ScheduledTask> {
+
+	long due;
+	Runnable task;
+
+	ScheduledTask(long due, Runnable task) {
+		this.due = due;
+		this.task = task;
+	}
+
+	@Override
+	public int compareTo(ScheduledTask other) {
+		return Long.compare(due - other.due, 0);
+	}
+}
+
+/*
+ * Control connection of one participant. Commands are framed as written by
+ * DataOutputStream.writeUTF, or as binary frames once the participant switched
+ * protocols, and are executed on the event loop by the same code the blocking
+ * worker uses. When the participant multiplexed the connection its msend link
+ * does the writing, and replies go out between its frames.
+ */
+class NioControlSession extends CoordinatorWorker implements NioHandler {
+
+	SocketChannel channel;
+	EventLoop loop;
+	SelectionKey key;
+	ByteBuffer readBuffer = ByteBuffer.allocate(512);
+	ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	// Set while a multiplexed msend link writes to the connection
+	NioMSendLink muxLink;
+
+	NioControlSession(SocketChannel channel, EventLoop loop) {
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	void open() {
+		try {
+			key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+			reply(Coordinator.PARTICIPANT_CONN_ACCEPT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeChannel();
+		}
+	}
+
+	@Override
+	public void handle(SelectionKey key) throws IOException {
+		if (key.isReadable()) {
+			read();
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+
+	private void read() throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			closeChannel();
+			return;
+		}
+		readBuffer.flip();
+		int needed = 0;
+		while (channel.isOpen()) {
+			if (binary) {
+				if (!frame.read(readBuffer)) {
+					needed = Frame.frameSize(readBuffer);
+					break;
+				}
+				handle(frame);
+				continue;
+			}
+			if (readBuffer.remaining() < 2) {
+				break;
+			}
+			int frameLength = 2 + (readBuffer.getShort(readBuffer.position()) & 0xffff);
+			if (readBuffer.remaining() < frameLength) {
+				needed = frameLength;
+				break;
+			}
+			DataInputStream text = new DataInputStream(
+					new ByteArrayInputStream(readBuffer.array(), readBuffer.position(), frameLength));
+			readBuffer.position(readBuffer.position() + frameLength);
+			handle(text.readUTF());
+		}
+		if (!channel.isOpen()) {
+			return;
+		}
+		readBuffer.compact();
+
+		// Make room for a command that does not fit in the buffer yet
+		if (needed > readBuffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/*
+	 * The loop does not wait for the fsync: the wal-writer hands the rest of the
+	 * command back to the loop once the record is durable
+	 */
+	@Override
+	void whenDurable(long position, final Completion then) {
+		Runnable onLoop = new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(then);
+			}
+		};
+		if (Coordinator.wal == null || !Coordinator.wal.commitLater(position, onLoop)) {
+			then.run();
+		}
+	}
+
+	@Override
+	void reply(String response) throws IOException {
+		if (!channel.isOpen()) {
+			// Closed while the command waited for the write-ahead log
+			throw new ClosedChannelException();
+		}
+		if (binary) {
+			writeQueue.add(Frame.encode(Frame.REPLY, participantId, 0, Frame.text(response)));
+		} else {
+			writeQueue.add(NioCoordinator.encodeUTF(response));
+		}
+		flush();
+	}
+
+	void flush() throws IOException {
+		if (muxLink != null) {
+			muxLink.flush();
+		} else if (writeReplies()) {
+			key.interestOps(SelectionKey.OP_READ);
+		} else {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/*
+	 * Writes the queued replies, returns false when the channel did not take
+	 * them all
+	 */
+	boolean writeReplies() throws IOException {
+		while (!writeQueue.isEmpty()) {
+			ByteBuffer head = writeQueue.peek();
+			channel.write(head);
+			if (head.hasRemaining()) {
+				return false;
+			}
+			writeQueue.poll();
+		}
+		return true;
+	}
+
+	@Override
+	MSendLink openMuxLink(Coordinator.MSendParticipant participant) throws IOException {
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		muxLink = new NioMSendLink(participant, this);
+		return muxLink;
+	}
+
+	@Override
+	void closeConnection() {
+		closeChannel();
+	}
+
+	@Override
+	public void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		connectionClosed(null);
+	}
+}
+
+/*
+ * msend connection of one participant. The coordinator connects to the
+ * participant's thread-B without blocking and the owning event loop writes the
+ * queued messages whenever the channel can take more data. When the outbound
+ * queue is full the message is not queued, because blocking here would stall
+ * an event loop, and the link reads it from the message log instead. On a
+ * multiplexed control connection the link uses the session's channel and key
+ * instead and writes the session's replies whenever it is between two frames.
+ */
+class NioMSendLink implements MSendLink, NioHandler {
+
+	Coordinator.MSendParticipant participant;
+	EventLoop loop;
+	SocketChannel channel;
+	SelectionKey key;
+	List<MessageBean> batch = new ArrayList<MessageBean>();
+
+	// Encoded messages of the batch being written, shared with other links
+	ByteBuffer[] pending = new ByteBuffer[WRITE_BATCH];
+	int pendingOffset;
+	int pendingCount;
+	long pendingSequence;
+	long pendingSince;
+	boolean connected;
+	boolean closed;
+
+	// Written after the pending messages when the participant moves to another
+	// shard, the link closes once it is out
+	ByteBuffer handOffFrame;
+	boolean handOffWritten;
+	AtomicBoolean flushScheduled = new AtomicBoolean();
+	// Null unless the participant accepted compressed batches
+	BatchCompressor compressor;
+	// Acknowledgements from the participant
+	ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+	Frame ack = new Frame();
+
+	// The multiplexed control connection, which reads the acknowledgements
+	NioControlSession control;
+
+	Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			try {
+				flush();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	};
+
+	NioMSendLink(Coordinator.MSendParticipant participant, EventLoop loop) throws IOException {
+		this.participant = participant;
+		this.loop = loop;
+		if (participant.compressed) {
+			compressor = new BatchCompressor();
+		}
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		if (COALESCE_DELAY > 0) {
+			// The coalescing delay replaces Nagle's algorithm as the bound on latency
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		connected = channel.connect(new InetSocketAddress(participant.getParticipantIP(), participant.getMSendPort()));
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (NioMSendLink.this) {
+						if (closed) {
+							return;
+						}
+						key = channel.register(NioMSendLink.this.loop.selector,
+								connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, NioMSendLink.this);
+					}
+					flush();
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Link on the control connection of the session, created on its event loop
+	 */
+	NioMSendLink(Coordinator.MSendParticipant participant, NioControlSession control) {
+		this.participant = participant;
+		this.control = control;
+		this.loop = control.loop;
+		if (participant.compressed) {
+			compressor = new BatchCompressor();
+		}
+		channel = control.channel;
+		key = control.key;
+		connected = true;
+		loop.execute(flushTask);
+	}
+
+	@Override
+	public void enqueue(MessageBean message) {
+		if (!participant.outboundQueue.offer(message)) {
+			participant.lagging = true;
+		}
+		if (COALESCE_DELAY == 0) {
+			if (flushScheduled.compareAndSet(false, true)) {
+				loop.execute(flushTask);
+			}
+			return;
+		}
+
+		// Give messages multicast close after this one the chance to join its write
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.schedule(flushTask, COALESCE_DELAY);
+		} else if (participant.outboundQueue.size() == COALESCE_MAX) {
+			loop.execute(flushTask);
+		}
+	}
+
+	@Override
+	public void handle(SelectionKey key) {
+		try {
+			ready(key);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void ready(SelectionKey key) throws IOException {
+		if (key.isConnectable()) {
+			channel.finishConnect();
+			synchronized (this) {
+				connected = true;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			flush();
+			return;
+		}
+		if (key.isReadable()) {
+			// Participants only send acknowledgements on this connection
+			if (channel.read(readBuffer) < 0) {
+				failed(null);
+				return;
+			}
+			readBuffer.flip();
+			boolean windowFull = participant.windowFull();
+			while (ack.read(readBuffer)) {
+				if (ack.opcode == Frame.ACK) {
+					participant.acknowledge(ack.sequence);
+				}
+			}
+			readBuffer.compact();
+			if (windowFull && !participant.windowFull()) {
+				flush();
+			}
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+
+	/*
+	 * Writes as much of the queued messages as the channel accepts without
+	 * blocking. Runs on the owning event loop.
+	 */
+	synchronized void flush() throws IOException {
+		if (closed || !connected || key == null || !channel.isOpen()) {
+			return;
+		}
+		while (true) {
+			if (control != null && !midFrame() && !control.writeReplies()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			if (pendingOffset == pendingCount) {
+				if (pendingSequence > 0) {
+					participant.recordWrite(System.nanoTime() - pendingSince);
+					participant.written(pendingSequence);
+					pendingSequence = 0;
+				}
+				if (handOffWritten) {
+					close();
+					return;
+				}
+				if (handOffFrame != null) {
+					pending[0] = handOffFrame;
+					pendingOffset = 0;
+					pendingCount = 1;
+					handOffWritten = true;
+				} else if (participant.windowFull() || !nextBatch()) {
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+			}
+			channel.write(pending, pendingOffset, pendingCount - pendingOffset);
+			while (pendingOffset < pendingCount && !pending[pendingOffset].hasRemaining()) {
+				pending[pendingOffset++] = null;
+			}
+			if (pendingOffset < pendingCount) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * True when a frame is partly written. The buffers of a batch are written in
+	 * order, so the next one is untouched between two frames.
+	 */
+	private boolean midFrame() {
+		return pendingOffset < pendingCount && pending[pendingOffset].position() > 0;
+	}
+
+	/*
+	 * Collects the shared encoded buffers of the next batch of messages, which
+	 * are then written with gathering writes. Returns false when there is
+	 * nothing to write.
+	 */
+	private boolean nextBatch() throws IOException {
+		batch.clear();
+		participant.nextBatch(null, WRITE_BATCH, batch);
+		if (batch.isEmpty()) {
+			return false;
+		}
+		pendingOffset = 0;
+		pendingCount = 0;
+		for (MessageBean m : batch) {
+			ByteBuffer encoded = m.encoded(participant.binary);
+			if (encoded == null) {
+				System.out.println(MSendLink.TOO_LONG_FOR_TEXT + m.getSequence());
+				continue;
+			}
+			pending[pendingCount++] = encoded;
+		}
+		pendingSequence = batch.get(batch.size() - 1).getSequence();
+		if (compressor != null) {
+			pendingCount = compressor.compress(pending, pendingCount, pendingSequence);
+		}
+		pendingSince = System.nanoTime();
+		participant.writeStarted = pendingSince;
+		return true;
+	}
+
+	/*
+	 * The connection broke, cause is null when the participant closed it
+	 */
+	void failed(IOException cause) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+		}
+		participant.linkFailed(this, cause);
+		closeChannel();
+	}
+
+	@Override
+	public synchronized void closeChannel() {
+		if (control != null) {
+			control.closeChannel();
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * The frame follows the messages of the batch being written, the event loop
+	 * writes it and then closes the connection
+	 */
+	@Override
+	public synchronized void handOff(ByteBuffer frame) {
+		handOffFrame = frame;
+		loop.execute(flushTask);
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (control == null) {
+			closeChannel();
+		} else {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					detach();
+				}
+			});
+		}
+		if (compressor != null) {
+			compressor.end();
+		}
+	}
+
+	/*
+	 * Gives the control connection back to the session once the link is
+	 * closed. A frame the link was in the middle of is finished first.
+	 */
+	private void detach() {
+		synchronized (this) {
+			if (midFrame()) {
+				control.writeQueue.addFirst(pending[pendingOffset]);
+			}
+			while (pendingOffset < pendingCount) {
+				pending[pendingOffset++] = null;
+			}
+		}
+		if (control.muxLink == this) {
+			control.muxLink = null;
+		}
+		if (!channel.isOpen()) {
+			return;
+		}
+		try {
+			control.flush();
+		} catch (IOException e) {
+			control.closeChannel();
+		}
+	}
+}
@@ -4,22 +4,23 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-
-enum ParticipantStatus {
-	ONLINE, OFFLINE, NOT_MEMBER
-}
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Inflater;
 
 public class Participant {
 
 	// Attributes from the participant configuration.txt
 	int id;
 	String msgLogFileName;
+	ParticipantLogWriter msgLogWriter;
 	InetAddress coordinatorIP;
 	int coordinatorPort;
-	ParticipantStatus status = ParticipantStatus.NOT_MEMBER;
+	volatile ParticipantStatus status = ParticipantStatus.NOT_MEMBER;
 
 	// Participant details during msend as it receives incoming messages on a
 	// different port
@@ -28,8 +29,45 @@ public class Participant {
 	ServerSocket msendServerSocket;
 	Socket msendSocket;
 	DataInputStream msendDis;
-
-	boolean connected;
+	DataOutputStream msendDos;
+
+	// Set by ThreadA once the coordinator connected to the msend port. Changes
+	// of the status and of this flag wake up ThreadB waiting for the connection.
+	volatile boolean connected;
+
+	// ThreadA and ThreadB run as platform threads or as virtual threads
+	ThreadMode threadMode = ThreadMode.fromProperty("participant.threads");
+
+	// binary (default) asks the coordinator for the binary protocol, text keeps
+	// the writeUTF commands
+	String protocol = System.getProperty("participant.protocol", "binary");
+	boolean binary;
+
+	// Offers to take multicast messages in compressed batches, which the
+	// coordinator uses when it is configured to
+	boolean compression = Boolean.parseBoolean(System.getProperty("participant.compression", "true"));
+
+	// Asks for the multicast messages on the control connection, so that the
+	// coordinator does not connect to the msend port, e.g. through NAT. Set for
+	// the current control connection when the coordinator agreed.
+	boolean multiplex = Boolean.getBoolean("participant.multiplex");
+	volatile boolean multiplexed;
+
+	// Set when the coordinator wants the logged messages acknowledged. It sends
+	// again what was not acknowledged when the connection broke, messages up to
+	// deliveredSequence are already in the log and skipped. ThreadB advances it,
+	// ThreadA resets it when the participant moves to another message log.
+	boolean acks;
+	volatile long deliveredSequence;
+
+	// host:port of a standby coordinator, participant.standby. When the
+	// coordinator fails the participant moves to the standby, which may need
+	// participant.failoverMs to take over, and reconnects there.
+	String standby = System.getProperty("participant.standby");
+	long failoverMs = Long.getLong("participant.failoverMs", 10000);
+
+	// Sends the commands, also the reconnect after a lost msend connection
+	ThreadA control;
 
 	public int getId() {
 		return id;
@@ -47,6 +85,10 @@ public class Participant {
 		this.msgLogFileName = msgLogFileName;
 	}
 
+	public ParticipantLogWriter getMsgLogWriter() {
+		return msgLogWriter;
+	}
+
 	public InetAddress getCoordinatorIP() {
 		return coordinatorIP;
 	}
@@ -67,8 +109,9 @@ public class Participant {
 		return status;
 	}
 
-	public void setStatus(ParticipantStatus status) {
+	public synchronized void setStatus(ParticipantStatus status) {
 		this.status = status;
+		notifyAll();
 	}
 
 	public int getMSendPort() {
@@ -95,12 +138,59 @@ public class Participant {
 		return msendDis;
 	}
 
+	public DataOutputStream getMSendDos() {
+		return msendDos;
+	}
+
 	public boolean isConnected() {
 		return connected;
 	}
 
-	public void setConnected(boolean connected) {
+	public synchronized void setConnected(boolean connected) {
 		this.connected = connected;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks ThreadB until the coordinator has connected to the msend port.
+	 * Returns false when the participant stopped being ONLINE first, e.g.
+	 * because the register or reconnect was refused.
+	 */
+	public synchronized boolean awaitMSendConn() throws InterruptedException {
+		while (status == ParticipantStatus.ONLINE && !connected) {
+			wait();
+		}
+		return status == ParticipantStatus.ONLINE;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	public boolean isAcks() {
+		return acks;
+	}
+
+	public void setAcks(boolean acks) {
+		this.acks = acks;
+	}
+
+	/*
+	 * Starts ThreadA or ThreadB. In virtual mode the thread object is only used
+	 * as the task of a virtual thread.
+	 */
+	public Thread startThread(Thread participantThread) {
+		if (!threadMode.isVirtual()) {
+			participantThread.start();
+			return participantThread;
+		}
+		Thread thread = threadMode.newThread(participantThread, participantThread.getClass().getName());
+		thread.start();
+		return thread;
 	}
 
 	private void createMsgLogFile() {
@@ -129,7 +219,8 @@ public class Participant {
 	public void createMSendConn() {
 		try {
 			msendSocket = msendServerSocket.accept();
-			msendDis = new DataInputStream(msendSocket.getInputStream());
+			msendDis = new DataInputStream(new BufferedInputStream(msendSocket.getInputStream()));
+			msendDos = new DataOutputStream(new BufferedOutputStream(msendSocket.getOutputStream(), 64));
 			setParticipantIP(msendSocket.getInetAddress());
 			setConnected(true);
 		} catch (IOException ioe) {
@@ -137,11 +228,26 @@ public class Participant {
 		}
 	}
 
+	/*
+	 * Closes the msend connection of a coordinator shard the participant moved
+	 * away from and waits for the connection of its new shard
+	 */
+	public DataInputStream acceptMSendConn() throws IOException {
+		msendSocket.close();
+		createMSendConn();
+		return msendDis;
+	}
+
 	public void closeMSendConn() {
 		try {
-			msendDis.close();
-			msendSocket.close();
-			msendServerSocket.close();
+			if (msendDis != null) {
+				msendDis.close();
+				msendSocket.close();
+			}
+			// Nothing to close when the messages come on the control connection
+			if (msendServerSocket != null) {
+				msendServerSocket.close();
+			}
 			setConnected(false);
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
@@ -171,14 +277,21 @@ public class Participant {
 
 			// Check if msg log file is present or not
 			p1.createMsgLogFile();
+			p1.msgLogWriter = ParticipantLogWriter.open(p1.getMsgLogFileName());
 
 			// Start the thread to accept user command
+			// Virtual threads do not keep the JVM alive, so wait for ThreadA
 			ThreadA threadA = new ThreadA(p1);
-			threadA.start();
+			p1.control = threadA;
+			p1.startThread(threadA).join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		} catch (FileNotFoundException fne) {
 			fne.printStackTrace();
 		} catch (UnknownHostException uhe) {
 			uhe.printStackTrace();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
 		}
 	}
 }
@@ -193,10 +306,18 @@ class ThreadA extends Thread {
 	String output;
 
 	Participant participant;
+	Frame reply = new Frame();
+
+	// Responses ThreadB read from a multiplexed control connection, followed
+	// by CONNECTION_CLOSED when the coordinator closed it
+	BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+	static final String CONNECTION_CLOSED = new String("Coordinator connection closed");
 
 	public static final String PARTICIPANT_CONN_ACCEPT = "Coordinator accepted connection with Participant";
 	public static final String PARTICIPANT_REGISTER_START = "Participant Register start";
 	public static final String PARTICIPANT_REGISTER_NOTIFICATION = "Participant is added to the multicast group";
+	public static final String PARTICIPANT_RECONNECT_NOTIFICATION = "Participant is reconnected and will be receiving messages sent within threshold";
+	public static final String PARTICIPANT_REDIRECT = "Participant belongs to the coordinator shard at";
 	public static final String SOCKET_CONN_CLOSED = "Closed socket connection";
 	public static final String REGISTER_CMD = "register";
 	public static final String DEREGISTER_CMD = "deregister";
@@ -204,49 +325,59 @@ class ThreadA extends Thread {
 	public static final String RECONNECT_CMD = "reconnect";
 	public static final String MSEND_CMD = "msend";
 
+	// Redirects followed for one command before giving up
+	static final int MAX_REDIRECTS = 3;
+
+	static final long FAILOVER_RETRY_MS = 200;
+
+	// Set once the participant moved to the standby coordinator
+	boolean onStandby;
+
 	ThreadA(Participant participant) {
 		this.participant = participant;
 	}
 
 	public void run() {
 		try {
-			socket = new Socket(participant.getCoordinatorIP(), participant.getCoordinatorPort());
-			dis = new DataInputStream(socket.getInputStream());
-			dos = new DataOutputStream(socket.getOutputStream());
-			System.out.println("Connected to coordinator: " + socket);
-
 			Scanner scanner = new Scanner(System.in);
 
-			output = dis.readUTF();
-			if (output.equals(PARTICIPANT_CONN_ACCEPT)) {
+			if (connect()) {
 				while (true) {
 					inputCmd = scanner.nextLine();
 					String[] command = inputCmd.split(" ");
-					switch (command[0]) {
-					case REGISTER_CMD:
-						register(command);
-						break;
-					case DEREGISTER_CMD:
-						deregister();
-						break;
-					case DISCONNECT_CMD:
-						disconnect();
-						break;
-					case RECONNECT_CMD:
-						reconnect(command);
-						break;
-					case "msend":
-						dos.writeUTF(inputCmd);
-						output = dis.readUTF();
-						System.out.println(output);
-						break;
+					// Commands do not overlap with the reconnect after a lost msend connection
+					synchronized (this) {
+						switch (command[0]) {
+						case REGISTER_CMD:
+							if (hasPort(command)) {
+								register(command);
+							} else {
+								System.out.println("Usage: register <port> [group]");
+							}
+							break;
+						case DEREGISTER_CMD:
+							deregister();
+							break;
+						case DISCONNECT_CMD:
+							disconnect();
+							break;
+						case RECONNECT_CMD:
+							if (hasPort(command)) {
+								reconnect(command);
+							} else {
+								System.out.println("Usage: reconnect <port>");
+							}
+							break;
+						case MSEND_CMD:
+							if (command.length > 1) {
+								msend();
+							} else {
+								System.out.println("Usage: msend <message>");
+							}
+							break;
+						}
 					}
 				}
-			} else {
-				dis.close();
-				dos.close();
-				socket.close();
-				System.out.println(output);
 			}
 		} catch (SocketException se) {
 			System.out.println("Coordinator Socket closed");
@@ -255,6 +386,297 @@ class ThreadA extends Thread {
 		}
 	}
 
+	/*
+	 * The port of register and reconnect must be given, as a number
+	 */
+	private static boolean hasPort(String[] command) {
+		if (command.length < 2) {
+			return false;
+		}
+		try {
+			Integer.parseInt(command[1]);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Opens the control connection to the coordinator. Returns false when the
+	 * coordinator does not accept it.
+	 */
+	private boolean connect() throws IOException {
+		socket = new Socket(participant.getCoordinatorIP(), participant.getCoordinatorPort());
+		dis = new DataInputStream(socket.getInputStream());
+		dos = new DataOutputStream(socket.getOutputStream());
+		System.out.println("Connected to coordinator: " + socket);
+
+		output = dis.readUTF();
+		if (!output.equals(PARTICIPANT_CONN_ACCEPT)) {
+			dis.close();
+			dos.close();
+			socket.close();
+			System.out.println(output);
+			return false;
+		}
+		negotiateProtocol();
+		if (participant.multiplexed) {
+			// ThreadB reads everything that comes on the connection from now on
+			replies.clear();
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			participant.startThread(new ThreadB(participant, socket, in, dos));
+		}
+		return true;
+	}
+
+	/*
+	 * Asks for the binary protocol. A coordinator that does not know it answers
+	 * with an error and the participant stays with text commands. Compressed
+	 * batches need nothing more than ThreadB reading BATCH frames, so whether
+	 * the coordinator agreed to them is not kept. A coordinator that does not
+	 * multiplex the control connection connects to the msend port instead.
+	 */
+	private void negotiateProtocol() throws IOException {
+		participant.multiplexed = false;
+		if (!participant.protocol.equals("binary")) {
+			return;
+		}
+		String offer = Frame.NEGOTIATE;
+		if (participant.compression) {
+			offer += " " + Frame.COMPRESSION;
+		}
+		if (participant.multiplex) {
+			offer += " " + Frame.MULTIPLEX;
+		}
+		dos.writeUTF(offer);
+		String response = dis.readUTF();
+		if (response.endsWith(Frame.MULTIPLEXED)) {
+			response = response.substring(0, response.length() - Frame.MULTIPLEXED.length());
+			participant.multiplexed = true;
+		}
+		if (response.endsWith(Frame.COMPRESSED)) {
+			response = response.substring(0, response.length() - Frame.COMPRESSED.length());
+		}
+		participant.setAcks(response.equals(Frame.BINARY_ACCEPTED_ACKS));
+		participant.setBinary(participant.isAcks() || response.equals(Frame.BINARY_ACCEPTED));
+	}
+
+	/**
+	 * Sends a command in the protocol of the connection and returns the
+	 * response. A coordinator shard the participant does not belong to answers
+	 * with the address of its shard, the command is then sent there over a new
+	 * control connection. Text commands other than register and reconnect do
+	 * not name the participant and are not sent again.
+	 */
+	private String request(String textCommand, byte opcode, byte[] payload) throws IOException {
+		String response;
+		try {
+			response = send(textCommand, opcode, payload);
+		} catch (IOException e) {
+			if (!reopen() && !failover()) {
+				throw e;
+			}
+			response = send(textCommand, opcode, payload);
+		}
+		for (int redirects = 0; redirects < MAX_REDIRECTS && response.startsWith(PARTICIPANT_REDIRECT)
+				&& (participant.isBinary() || opcode == Frame.REGISTER || opcode == Frame.RECONNECT); redirects++) {
+			if (!moveTo(response.substring(PARTICIPANT_REDIRECT.length()).trim())) {
+				break;
+			}
+			if (opcode == Frame.RECONNECT) {
+				// Sequence numbers are those of the new shard's own message log
+				participant.deliveredSequence = 0;
+			}
+			response = send(textCommand, opcode, payload);
+		}
+		return response;
+	}
+
+	/*
+	 * Connects to another coordinator shard given as host:port
+	 */
+	private boolean moveTo(String shard) throws IOException {
+		socket.close();
+		setCoordinator(shard);
+		return connect();
+	}
+
+	/*
+	 * Opens a new control connection to the same coordinator when it closed a
+	 * multiplexed one, e.g. after dropping a slow consumer. Returns false when
+	 * the connection is not multiplexed or the coordinator cannot be reached.
+	 */
+	private boolean reopen() {
+		if (!participant.multiplexed) {
+			return false;
+		}
+		try {
+			socket.close();
+			return connect();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Moves the control connection to the standby coordinator once the
+	 * coordinator failed. The standby only accepts connections after it took
+	 * over, so it is tried for participant.failoverMs. Returns false when there
+	 * is no standby or the participant is on it already.
+	 */
+	private boolean failover() throws IOException {
+		if (participant.standby == null || onStandby) {
+			return false;
+		}
+		onStandby = true;
+		socket.close();
+		setCoordinator(participant.standby);
+		System.out.println("Coordinator failed, moving to standby coordinator " + participant.standby);
+		long deadline = System.currentTimeMillis() + participant.failoverMs;
+		while (true) {
+			try {
+				return connect();
+			} catch (IOException e) {
+				if (System.currentTimeMillis() >= deadline) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(FAILOVER_RETRY_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	private void setCoordinator(String hostPort) throws UnknownHostException {
+		int colon = hostPort.lastIndexOf(':');
+		participant.setCoordinatorIP(InetAddress.getByName(hostPort.substring(0, colon)));
+		participant.setCoordinatorPort(Integer.parseInt(hostPort.substring(colon + 1)));
+	}
+
+	/*
+	 * Reconnects on a thread of its own after the coordinator closed the msend
+	 * connection of a participant that is ONLINE. A multiplexed connection
+	 * closed with it, a new one is opened first.
+	 */
+	void recoverLater() {
+		participant.startThread(new Thread() {
+			@Override
+			public void run() {
+				recover();
+			}
+		});
+	}
+
+	private synchronized void recover() {
+		if (participant.getStatus() != ParticipantStatus.ONLINE || participant.isConnected()) {
+			return;
+		}
+		System.out.println("Multicast connection lost, reconnecting");
+		try {
+			if (participant.multiplexed && !reopen() && !failover()) {
+				System.out.println("Coordinator socket closed");
+				return;
+			}
+		} catch (IOException e) {
+			System.out.println("Coordinator socket closed");
+			return;
+		}
+		reconnect(new String[] { RECONNECT_CMD, String.valueOf(participant.getMSendPort()) });
+	}
+
+	/*
+	 * Moves to the coordinator shard the participant was handed over to, on a
+	 * thread of its own, when it takes its messages on the control connection.
+	 * The new shard may not know the participant yet when it asks, it is asked
+	 * again until participant.failoverMs has passed.
+	 */
+	void followLater(final String shard) {
+		participant.startThread(new Thread() {
+			@Override
+			public void run() {
+				follow(shard);
+			}
+		});
+	}
+
+	private synchronized void follow(String shard) {
+		if (participant.getStatus() != ParticipantStatus.ONLINE) {
+			return;
+		}
+		try {
+			participant.setConnected(false);
+			if (!moveTo(shard)) {
+				return;
+			}
+			// Sequence numbers are those of the new shard's own message log
+			participant.deliveredSequence = 0;
+			long deadline = System.currentTimeMillis() + participant.failoverMs;
+			while (true) {
+				reconnect(new String[] { RECONNECT_CMD, String.valueOf(participant.getMSendPort()) });
+				if (participant.isConnected() || System.currentTimeMillis() >= deadline) {
+					return;
+				}
+				Thread.sleep(FAILOVER_RETRY_MS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Called by ThreadB with a response read from a multiplexed control
+	 * connection, or CONNECTION_CLOSED
+	 */
+	void replied(String response) {
+		replies.add(response);
+	}
+
+	private String send(String textCommand, byte opcode, byte[] payload) throws IOException {
+		if (!participant.isBinary()) {
+			dos.writeUTF(textCommand);
+			return dis.readUTF();
+		}
+		// ThreadB writes its acknowledgements to a multiplexed connection as well
+		synchronized (dos) {
+			dos.write(Frame.encode(opcode, participant.getId(), 0, payload).array());
+		}
+		return readReply();
+	}
+
+	private String readReply() throws IOException {
+		if (!participant.multiplexed) {
+			reply.read(dis);
+			return reply.payloadText();
+		}
+		String response;
+		try {
+			response = replies.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (response == CONNECTION_CLOSED) {
+			throw new SocketException(CONNECTION_CLOSED);
+		}
+		return response;
+	}
+
+	/*
+	 * Reports the messages logged since register or reconnect, as ThreadB does
+	 * when a msend connection closes
+	 */
+	private void endSession() throws IOException {
+		if (participant.multiplexed) {
+			participant.getMsgLogWriter().endSession();
+		}
+	}
+
 	private void register(String[] command) {
 		try {
 			if(!participant.isConnected()) {
@@ -262,25 +684,45 @@ class ThreadA extends Thread {
 				int msendPort = Integer.parseInt(command[1]);
 				participant.setStatus(ParticipantStatus.ONLINE);
 				participant.setMSendPort(msendPort);
-				participant.createMSendServerSocket();
-				participant.setParticipantIP(participant.getMSendServerSocket().getInetAddress());
-	
-				/*
-				 * Starting ThreadB as it has to be operational before the participant sends the
-				 * message to the coordinator
-				 */
-				ThreadB b = new ThreadB(participant);
-				b.start();
+				if (participant.multiplexed) {
+					// The messages come on the control connection, nothing listens on the port
+					participant.setParticipantIP(socket.getLocalAddress());
+				} else {
+					participant.createMSendServerSocket();
+					participant.setParticipantIP(participant.getMSendServerSocket().getInetAddress());
+		
+					/*
+					 * Starting ThreadB as it has to be operational before the participant sends the
+					 * message to the coordinator
+					 */
+					ThreadB b = new ThreadB(participant);
+					participant.startThread(b);
+				}
 	
-				// Register participant id, IP and port number with coordinator
+				// Register participant id, IP and port number with coordinator, and the
+				// group to join when one is given after the port
+				String group = command.length > 2 ? command[2] : null;
 				String registerInput = REGISTER_CMD + " " + participant.getId() + ","
-						+ participant.getParticipantIP().getHostAddress() + "," + msendPort;
-				dos.writeUTF(registerInput);
-				output = dis.readUTF();
+						+ participant.getParticipantIP().getHostAddress() + "," + msendPort
+						+ (group != null ? "," + group : "");
+				// Sequence numbers are those of the group's own message log. Reset before
+				// the request, as the first messages may come before the reply does.
+				long delivered = participant.deliveredSequence;
+				participant.deliveredSequence = 0;
+				output = request(registerInput, Frame.REGISTER, Frame.address(
+						participant.getParticipantIP().getHostAddress(), participant.multiplexed ? 0 : msendPort, group));
 				if (output.equals(PARTICIPANT_REGISTER_NOTIFICATION)) {
-					participant.createMSendConn();
+					if (participant.multiplexed) {
+						participant.setConnected(true);
+					} else {
+						participant.createMSendConn();
+					}
 					System.out.println(output);
 				} else {
+					participant.deliveredSequence = delivered;
+					// Lets ThreadB end instead of waiting for a connection that never comes
+					participant.setStatus(ParticipantStatus.NOT_MEMBER);
+					participant.closeMSendConn();
 					System.out.println(output);
 //					try {
 //						
@@ -304,12 +746,23 @@ class ThreadA extends Thread {
 		}
 	}
 
+	private void msend() {
+		try {
+			output = request(inputCmd, Frame.MSEND, Frame.text(inputCmd.substring(6)));
+			System.out.println(output);
+		} catch (SocketException se) {
+			System.out.println("Coordinator socket closed");
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
 	private void deregister() {
 		try {
 			participant.setStatus(ParticipantStatus.NOT_MEMBER);
 			participant.closeMSendConn();
-			dos.writeUTF(inputCmd);
-			output = dis.readUTF();
+			output = request(inputCmd, Frame.DEREGISTER, new byte[0]);
+			endSession();
 			System.out.println(output);
 		} catch (SocketException se) {
 			System.out.println("Coordinator socket closed");
@@ -322,8 +775,8 @@ class ThreadA extends Thread {
 		try {
 			participant.setStatus(ParticipantStatus.OFFLINE);
 			participant.closeMSendConn();
-			dos.writeUTF(inputCmd);
-			output = dis.readUTF();
+			output = request(inputCmd, Frame.DISCONNECT, new byte[0]);
+			endSession();
 			System.out.println(output);
 		} catch (SocketException se) {
 			System.out.println("Coordinator socket closed");
@@ -333,27 +786,46 @@ class ThreadA extends Thread {
 	}
 
 	private void reconnect(String[] command) {
+		ParticipantStatus previousStatus = participant.getStatus();
 		try {
 			// Create serversocket at participant side
 			int msendPort = Integer.parseInt(command[1]);
 			participant.setStatus(ParticipantStatus.ONLINE);
 			participant.setMSendPort(msendPort);
-			participant.createMSendServerSocket();
-			participant.setParticipantIP(participant.getMSendServerSocket().getInetAddress());
+			if (participant.multiplexed) {
+				participant.setParticipantIP(socket.getLocalAddress());
+			} else {
+				participant.createMSendServerSocket();
+				participant.setParticipantIP(participant.getMSendServerSocket().getInetAddress());
 
-			/*
-			 * Starting ThreadB as it has to be operational before the participant sends the
-			 * message to the coordinator
-			 */
-			ThreadB b = new ThreadB(participant);
-			b.start();
+				/*
+				 * Starting ThreadB as it has to be operational before the participant sends the
+				 * message to the coordinator
+				 */
+				ThreadB b = new ThreadB(participant);
+				participant.startThread(b);
+			}
 
 			// Register participant IP and port number with coordinator
 			String reconnectInput = command[0] + " " + participant.getParticipantIP().getHostAddress() + ","
-					+ msendPort;
-			dos.writeUTF(reconnectInput);
-			participant.createMSendConn();
-			output = dis.readUTF();
+					+ msendPort + "," + participant.getId();
+			/*
+			 * The coordinator connects to the msend port before it replies, the
+			 * connection waits in the backlog until it is accepted. On a
+			 * multiplexed connection the messages may come before the reply.
+			 */
+			output = request(reconnectInput, Frame.RECONNECT, Frame.address(
+					participant.getParticipantIP().getHostAddress(), participant.multiplexed ? 0 : msendPort));
+			if (output.equals(PARTICIPANT_RECONNECT_NOTIFICATION)) {
+				if (participant.multiplexed) {
+					participant.setConnected(true);
+				} else {
+					participant.createMSendConn();
+				}
+			} else {
+				participant.setStatus(previousStatus);
+				participant.closeMSendConn();
+			}
 			System.out.println(output);
 		} catch (SocketException se) {
 			System.out.println("Coordinator socket closed");
@@ -366,38 +838,177 @@ class ThreadA extends Thread {
 class ThreadB extends Thread {
 
 	Participant participant;
+	Frame frame = new Frame();
+
+	// A MESSAGE frame of a compressed batch and the inflater of the batches
+	Frame batched = new Frame();
+	Inflater inflater = new Inflater();
+
+	// Set when the coordinator closed the connection while the participant is ONLINE
+	boolean recover;
+
+	// The control connection when the coordinator multiplexed the messages on
+	// it, null when it connects to the msend port
+	Socket controlSocket;
+	DataInputStream controlIn;
+	DataOutputStream controlOut;
 
 	ThreadB(Participant participant) {
 		this.participant = participant;
 	}
 
+	/*
+	 * Reads a multiplexed control connection from the protocol negotiation
+	 * until it closes, handing the replies to ThreadA
+	 */
+	ThreadB(Participant participant, Socket controlSocket, DataInputStream controlIn, DataOutputStream controlOut) {
+		this.participant = participant;
+		this.controlSocket = controlSocket;
+		this.controlIn = controlIn;
+		this.controlOut = controlOut;
+	}
+
+	/*
+	 * Waits for the coordinator to connect and then blocks reading multicast
+	 * messages until the connection is closed, by ThreadA on disconnect or
+	 * deregister or by the coordinator. Nothing runs while there is nothing to
+	 * read. With acknowledgements every commit of the message log is followed by
+	 * an ACK of the last sequence logged. The messages of a compressed batch are
+	 * inflated and logged as if they had come one by one. On a multiplexed
+	 * control connection there is nothing to wait for, and it outlives
+	 * disconnect and reconnect.
+	 */
 	public void run() {
+		runSession();
+		// The participant did not disconnect, find the coordinator again
+		if (recover && (participant.standby != null || controlSocket != null)) {
+			participant.control.recoverLater();
+		}
+	}
+
+	private void runSession() {
 		try {
-			boolean isLive;
+			DataInputStream msendDis;
+			if (controlSocket != null) {
+				msendDis = controlIn;
+			} else if (participant.awaitMSendConn()) {
+				msendDis = participant.getMSendDis();
+			} else {
+				return;
+			}
+			ParticipantLogWriter logWriter = participant.getMsgLogWriter();
+			boolean acks = participant.isAcks();
+			long acked = participant.deliveredSequence;
 			while (true) {
-				if (Thread.currentThread().isAlive()) {
-					isLive=true;
-				}
-				if (participant.getStatus() == ParticipantStatus.ONLINE && participant.isConnected()) {
-					String msg = participant.getMSendDis().readUTF();
-					BufferedWriter writer = new BufferedWriter(new FileWriter(participant.getMsgLogFileName(), true));
-					writer.write(msg);
-					writer.newLine();
-					writer.close();
+				if (participant.isBinary()) {
+					frame.read(msendDis);
+					if (frame.opcode == Frame.REPLY && controlSocket != null) {
+						participant.control.replied(frame.payloadText());
+						continue;
+					}
+					if (frame.opcode == Frame.HANDOFF) {
+						// Moved to another coordinator shard, which connects next
+						logWriter.commit();
+						System.out.println("Multicast messages now come from coordinator shard " + frame.payloadText());
+						if (controlSocket != null) {
+							// Unless the participant reconnects there itself
+							participant.control.followLater(frame.payloadText());
+							continue;
+						}
+						msendDis = participant.acceptMSendConn();
+						participant.deliveredSequence = 0;
+						acked = 0;
+						continue;
+					}
+					if (frame.opcode == Frame.BATCH) {
+						ByteBuffer messages = frame.batchFrames(inflater);
+						while (batched.read(messages)) {
+							append(logWriter, batched, acks);
+						}
+					} else {
+						append(logWriter, frame, acks);
+					}
+				} else {
+					logWriter.append(msendDis.readUTF());
 				}
-				if (participant.getStatus() == ParticipantStatus.OFFLINE) {
-					return;
+
+				// Group commit: one write for all messages that arrived together
+				if (msendDis.available() == 0) {
+					logWriter.commit();
 				}
-				if (participant.getStatus() == ParticipantStatus.NOT_MEMBER) {
-					return;
+				if (acks && logWriter.isCommitted() && acked < participant.deliveredSequence) {
+					acked = participant.deliveredSequence;
+					DataOutputStream out = controlSocket != null ? controlOut : participant.getMSendDos();
+					synchronized (out) {
+						out.write(Frame.encode(Frame.ACK, participant.getId(), acked, Frame.EMPTY).array());
+						out.flush();
+					}
 				}
 			}
-		} catch (SocketException se) {
-			System.out.println("Multicast socket closed");
-		} catch (FileNotFoundException fnfe) {
-			System.out.println(fnfe.getMessage());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
+			if (controlSocket != null) {
+				controlClosed();
+			} else if (ioe instanceof EOFException || ioe instanceof SocketException) {
+				closedByCoordinator();
+			} else if (participant.getStatus() == ParticipantStatus.ONLINE) {
+				ioe.printStackTrace();
+			} else {
+				// A stream ThreadA closed on disconnect or deregister is expected
+				System.out.println("Multicast socket closed");
+			}
+		} finally {
+			inflater.end();
+			try {
+				participant.getMsgLogWriter().endSession();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Logs the message of a MESSAGE frame. With acknowledgements a message sent
+	 * again after a reconnect that was logged before is skipped.
+	 */
+	private void append(ParticipantLogWriter logWriter, Frame message, boolean acks) throws IOException {
+		if (acks) {
+			if (message.sequence <= participant.deliveredSequence) {
+				return;
+			}
+			participant.deliveredSequence = message.sequence;
+		}
+		logWriter.append(message.payloadText());
+	}
+
+	/*
+	 * A connection the coordinator closed, e.g. when it handed the participant
+	 * over to another shard, frees the msend port so that reconnect can use it
+	 */
+	private void closedByCoordinator() {
+		System.out.println("Multicast socket closed");
+		if (participant.getStatus() == ParticipantStatus.ONLINE) {
+			participant.closeMSendConn();
+			recover = true;
+		}
+	}
+
+	/*
+	 * The multiplexed control connection ended. Closed by ThreadA, it moved to
+	 * another coordinator and another ThreadB reads there; closed by the
+	 * coordinator, a command waiting for its reply fails and an ONLINE
+	 * participant reconnects.
+	 */
+	private void controlClosed() {
+		if (controlSocket.isClosed()) {
+			return;
+		}
+		participant.control.replied(ThreadA.CONNECTION_CLOSED);
+		System.out.println("Coordinator connection closed");
+		if (participant.getStatus() == ParticipantStatus.ONLINE) {
+			participant.setConnected(false);
+			recover = true;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/*
+ * Writer of the participant's message log that stays open for the lifetime of
+ * the participant. Received messages are buffered and written with group
+ * commit: thread-B commits whenever nothing more is waiting on the msend
+ * connection, or after maxBatch messages, so a burst of messages costs one
+ * write and at most one fsync.
+ */
+class ParticipantLogWriter {
+
+	/*
+	 * When committed messages are forced to disk. NONE leaves it to the
+	 * operating system, INTERVAL forces every intervalMs in the background and
+	 * BATCH forces every commit.
+	 */
+	enum FsyncPolicy {
+		NONE, INTERVAL, BATCH
+	}
+
+	static final String LINE_SEPARATOR = System.lineSeparator();
+
+	FileOutputStream file;
+	Writer writer;
+	FsyncPolicy policy;
+	long intervalMs;
+	int maxBatch;
+
+	// Messages appended but not committed yet
+	int pending;
+	volatile boolean unsynced;
+
+	// Throughput of the current msend connection
+	long sessionMessages;
+	long sessionBatches;
+	long sessionStart;
+	long lastCommit;
+
+	ParticipantLogWriter(String fileName, FsyncPolicy policy, long intervalMs, int maxBatch) throws IOException {
+		this.file = new FileOutputStream(fileName, true);
+		this.writer = new BufferedWriter(new OutputStreamWriter(file), 64 * 1024);
+		this.policy = policy;
+		this.intervalMs = intervalMs;
+		this.maxBatch = maxBatch;
+		if (policy == FsyncPolicy.INTERVAL) {
+			startSyncThread();
+		}
+	}
+
+	/*
+	 * Opens the message log with the policy of the participant.log.* system
+	 * properties
+	 */
+	static ParticipantLogWriter open(String fileName) throws IOException {
+		FsyncPolicy policy = FsyncPolicy.valueOf(System.getProperty("participant.log.fsync", "none").toUpperCase());
+		long intervalMs = Long.getLong("participant.log.fsyncIntervalMs", 1000);
+		int maxBatch = Integer.getInteger("participant.log.maxBatch", 1024);
+		return new ParticipantLogWriter(fileName, policy, intervalMs, maxBatch);
+	}
+
+	synchronized void append(String message) throws IOException {
+		if (sessionMessages == 0 && pending == 0) {
+			sessionStart = System.nanoTime();
+		}
+		writer.write(message);
+		writer.write(LINE_SEPARATOR);
+		if (++pending >= maxBatch) {
+			commit();
+		}
+	}
+
+	/*
+	 * Writes the appended messages to the file, forcing them to disk with the
+	 * BATCH policy
+	 */
+	synchronized void commit() throws IOException {
+		if (pending == 0) {
+			return;
+		}
+		writer.flush();
+		if (policy == FsyncPolicy.BATCH) {
+			file.getChannel().force(false);
+		} else {
+			unsynced = true;
+		}
+		sessionMessages += pending;
+		sessionBatches++;
+		pending = 0;
+		lastCommit = System.nanoTime();
+	}
+
+	/*
+	 * True when every appended message is committed
+	 */
+	synchronized boolean isCommitted() {
+		return pending == 0;
+	}
+
+	/*
+	 * Commits what is left when the msend connection ends and reports the
+	 * throughput while it was open
+	 */
+	synchronized void endSession() throws IOException {
+		commit();
+		if (sessionMessages == 0) {
+			return;
+		}
+		long nanos = Math.max(1, lastCommit - sessionStart);
+		System.out.println("Logged " + sessionMessages + " messages in " + sessionBatches + " batches, "
+				+ (long) (sessionMessages * 1e9 / nanos) + " messages/s");
+		sessionMessages = 0;
+		sessionBatches = 0;
+	}
+
+	private void startSyncThread() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(intervalMs);
+						if (unsynced) {
+							unsynced = false;
+							file.getChannel().force(false);
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "message-log-fsync");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,129 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Participants known to the coordinator. Lookups by id go to a concurrent
+ * map. The fan-out of msend iterates arrays instead: one of all members and,
+ * in the registries of groups, one of the ONLINE members in the fan-out,
+ * replaced by a copy on every registration, deregistration and status change,
+ * and when a slow participant is taken out of the fan-out or put back, see
+ * SlowConsumers. Readers never lock and always see a consistent snapshot;
+ * changes are rare next to multicasts and are serialized on the registry.
+ */
+class ParticipantRegistry {
+
+	private static final Coordinator.MSendParticipant[] NONE = new Coordinator.MSendParticipant[0];
+
+	private final ConcurrentHashMap<Integer, Coordinator.MSendParticipant> byId = new ConcurrentHashMap<Integer, Coordinator.MSendParticipant>();
+	private volatile Coordinator.MSendParticipant[] members = NONE;
+	private volatile Coordinator.MSendParticipant[] online = NONE;
+
+	// Set for the registries the fan-out reads, those of the groups
+	private final boolean tracksOnline;
+
+	ParticipantRegistry(boolean tracksOnline) {
+		this.tracksOnline = tracksOnline;
+	}
+
+	/*
+	 * Adds the participant unless its id is taken. Returns false when it is.
+	 */
+	synchronized boolean add(Coordinator.MSendParticipant p) {
+		if (byId.putIfAbsent(p.getParticipantID(), p) != null) {
+			return false;
+		}
+		members = with(members, p);
+		statusChanged(p);
+		return true;
+	}
+
+	/*
+	 * Adds the participant, replacing one with the same id. Used when the write-
+	 * ahead log is replayed.
+	 */
+	synchronized void put(Coordinator.MSendParticipant p) {
+		remove(p.getParticipantID());
+		add(p);
+	}
+
+	synchronized Coordinator.MSendParticipant remove(int participantId) {
+		Coordinator.MSendParticipant p = byId.remove(participantId);
+		if (p != null) {
+			members = without(members, p);
+			online = without(online, p);
+		}
+		return p;
+	}
+
+	Coordinator.MSendParticipant get(int participantId) {
+		return byId.get(participantId);
+	}
+
+	boolean contains(int participantId) {
+		return byId.containsKey(participantId);
+	}
+
+	/*
+	 * Brings the ONLINE snapshot in line with the participant's current status
+	 */
+	synchronized void statusChanged(Coordinator.MSendParticipant p) {
+		if (!tracksOnline || byId.get(p.getParticipantID()) != p) {
+			return;
+		}
+		boolean listed = indexOf(online, p) >= 0;
+		if (p.inFanOut()) {
+			if (!listed) {
+				online = with(online, p);
+			}
+		} else if (listed) {
+			online = without(online, p);
+		}
+	}
+
+	/*
+	 * Snapshot of all members, whatever their status. Must not be modified.
+	 */
+	Coordinator.MSendParticipant[] members() {
+		return members;
+	}
+
+	/*
+	 * Snapshot of the ONLINE members the fan-out delivers to, empty unless the
+	 * registry tracks them. Must not be modified.
+	 */
+	Coordinator.MSendParticipant[] online() {
+		return online;
+	}
+
+	int size() {
+		return members.length;
+	}
+
+	private static Coordinator.MSendParticipant[] with(Coordinator.MSendParticipant[] array,
+			Coordinator.MSendParticipant p) {
+		Coordinator.MSendParticipant[] copy = Arrays.copyOf(array, array.length + 1);
+		copy[array.length] = p;
+		return copy;
+	}
+
+	private static Coordinator.MSendParticipant[] without(Coordinator.MSendParticipant[] array,
+			Coordinator.MSendParticipant p) {
+		int index = indexOf(array, p);
+		if (index < 0) {
+			return array;
+		}
+		Coordinator.MSendParticipant[] copy = new Coordinator.MSendParticipant[array.length - 1];
+		System.arraycopy(array, 0, copy, 0, index);
+		System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+		return copy;
+	}
+
+	private static int indexOf(Coordinator.MSendParticipant[] array, Coordinator.MSendParticipant p) {
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] == p) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,3 @@
+enum ParticipantStatus {
+	ONLINE, OFFLINE, NOT_MEMBER
+}
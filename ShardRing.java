@@ -0,0 +1,98 @@
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Consistent hash ring of the coordinator shards. Every shard is placed on the
+ * ring VIRTUAL_NODES times and a participant belongs to the first shard at or
+ * after the hash of its id. When a shard joins only the participants that
+ * fall into its ranges move to it, about 1/n of them, the others stay where
+ * they are.
+ */
+class ShardRing {
+
+	static final int VIRTUAL_NODES = 128;
+
+	private final List<InetSocketAddress> shards;
+	private final TreeMap<Long, InetSocketAddress> ring = new TreeMap<Long, InetSocketAddress>();
+
+	ShardRing(List<InetSocketAddress> shards) {
+		this.shards = shards;
+		for (InetSocketAddress shard : shards) {
+			byte[] name = key(shard).getBytes(StandardCharsets.UTF_8);
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(mix(fnv(name) + i * 0x9e3779b97f4a7c15L), shard);
+			}
+		}
+	}
+
+	/*
+	 * Parses a comma separated list of host:port control addresses
+	 */
+	static ShardRing parse(String list) {
+		List<InetSocketAddress> shards = new ArrayList<InetSocketAddress>();
+		for (String entry : list.split(",")) {
+			shards.add(address(entry.trim()));
+		}
+		return new ShardRing(shards);
+	}
+
+	static InetSocketAddress address(String hostPort) {
+		int colon = hostPort.lastIndexOf(':');
+		return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+	}
+
+	/*
+	 * host:port of a shard as used in lists and redirects
+	 */
+	static String key(InetSocketAddress shard) {
+		return shard.getHostString() + ":" + shard.getPort();
+	}
+
+	InetSocketAddress ownerOf(int participantId) {
+		Map.Entry<Long, InetSocketAddress> entry = ring.ceilingEntry(mix(participantId));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	List<InetSocketAddress> shards() {
+		return shards;
+	}
+
+	boolean contains(InetSocketAddress shard) {
+		return shards.contains(shard);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder list = new StringBuilder();
+		for (InetSocketAddress shard : shards) {
+			if (list.length() > 0) {
+				list.append(',');
+			}
+			list.append(key(shard));
+		}
+		return list.toString();
+	}
+
+	private static long fnv(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// Finalizer of MurmurHash3, spreads consecutive ids over the whole ring
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53ef2fbL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
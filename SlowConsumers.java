@@ -0,0 +1,62 @@
+/*
+ * Keeps participants that do not take their messages fast enough from holding
+ * up their group. A participant is taken out of the fan-out when it is more
+ * than HIGH_WATER messages behind, or when a write to it makes no progress for
+ * WRITE_TIMEOUT_MS. Its messages then stay in the message log, its msend link
+ * reads them from there at the pace the participant takes them, and once it is
+ * within LOW_WATER messages of the end of the log it is put back into the
+ * fan-out. A participant whose write makes no progress for DROP_MS loses its
+ * msend connection and gets the rest on reconnect, like one whose connection
+ * broke.
+ */
+class SlowConsumers implements Runnable {
+
+	static final int HIGH_WATER = Integer.getInteger("coordinator.slowConsumer.highWater", 8192);
+	static final int LOW_WATER = Integer.getInteger("coordinator.slowConsumer.lowWater", 1024);
+	static final long WRITE_TIMEOUT_MS = Long.getLong("coordinator.slowConsumer.writeTimeoutMs", 2000);
+
+	// 0 never drops a connection
+	static final long DROP_MS = Long.getLong("coordinator.slowConsumer.dropMs", 60000);
+
+	// How often the writes in progress are checked against the deadlines
+	static final long CHECK_INTERVAL_MS = 250;
+
+	static void start() {
+		Thread thread = new Thread(new SlowConsumers(), "slow-consumers");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(CHECK_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			check(System.nanoTime());
+		}
+	}
+
+	/*
+	 * Demotes every ONLINE participant whose write is past the deadline and
+	 * drops the ones past DROP_MS
+	 */
+	static void check(long now) {
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			long started = p.writeStarted;
+			if (started == 0 || p.getStatus() != ParticipantStatus.ONLINE) {
+				continue;
+			}
+			long stalledMs = (now - started) / 1000000;
+			if (DROP_MS > 0 && stalledMs > DROP_MS) {
+				if (p.writeTimedOut(stalledMs)) {
+					Metrics.droppedSlowConsumers.increment();
+				}
+			} else if (stalledMs > WRITE_TIMEOUT_MS) {
+				p.demote("write deadline");
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/*
+ * Hot standby of a primary coordinator, set up with coordinator.standbyOf. The
+ * standby does not serve participants. It follows the write-ahead log the
+ * primary ships, see LogShipper, and applies every record to its own
+ * participants and message logs, so it holds the same state as the primary
+ * including the sequence numbers of the messages.
+ *
+ * When it has not heard from the primary for failoverMs, not even a
+ * heartbeat, and cannot reach it again, the standby takes over: participants
+ * that were ONLINE become OFFLINE and the coordinator starts serving on its
+ * own port. Participants started with participant.standby reconnect to it and
+ * get the messages after their cursor again.
+ */
+class Standby {
+
+	static final long RETRY_MS = 200;
+
+	InetSocketAddress primary;
+	long failoverMs;
+
+	// Decodes and applies the shipped records
+	WriteAheadLog decoder;
+
+	Standby(InetSocketAddress primary, long failoverMs, WriteAheadLog decoder) {
+		this.primary = primary;
+		this.failoverMs = failoverMs;
+		this.decoder = decoder;
+	}
+
+	/*
+	 * Creates the standby configured by coordinator.standbyOf, or returns null
+	 * when the coordinator is a primary
+	 */
+	static Standby fromProperties(WriteAheadLog wal) {
+		String primary = System.getProperty("coordinator.standbyOf");
+		if (primary == null) {
+			return null;
+		}
+		long failoverMs = Long.getLong("coordinator.standby.failoverMs", 3000);
+		WriteAheadLog decoder = wal != null ? wal : new WriteAheadLog(null, WriteAheadLog.FsyncPolicy.GROUP, 0, 0);
+		return new Standby(ShardRing.address(primary), failoverMs, decoder);
+	}
+
+	/**
+	 * Follows the primary until it failed. The state is built again from the
+	 * primary's snapshot every time the standby connects, so a standby that
+	 * lost the connection for a moment does not keep stale participants.
+	 */
+	void follow() throws InterruptedException {
+		boolean synced = false;
+		boolean following = false;
+		long lastHeard = System.currentTimeMillis();
+		byte[] record = new byte[256];
+		while (true) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(primary, (int) failoverMs);
+				socket.setSoTimeout((int) failoverMs);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+				reset();
+				following = true;
+				System.out.println("Following primary coordinator " + ShardRing.key(primary));
+				while (true) {
+					int length = in.readInt();
+					int checksum = in.readInt();
+					lastHeard = System.currentTimeMillis();
+					synced = true;
+					if (length == 0) {
+						// Heartbeat
+						continue;
+					}
+					if (record.length < length) {
+						record = new byte[Math.max(length, record.length * 2)];
+					}
+					in.readFully(record, 0, length);
+					if (!decoder.applyShipped(record, length, checksum)) {
+						throw new IOException("Shipped record failed its checksum");
+					}
+				}
+			} catch (IOException e) {
+				if (following) {
+					System.out.println("Lost primary coordinator " + ShardRing.key(primary) + " ("
+							+ (e.getMessage() != null ? e.getMessage() : "connection closed") + ")");
+					following = false;
+				}
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			// A standby that never got the primary's state must not take over
+			if (synced && System.currentTimeMillis() - lastHeard >= failoverMs) {
+				return;
+			}
+			Thread.sleep(RETRY_MS);
+		}
+	}
+
+	/*
+	 * Becomes the coordinator with the state followed from the primary
+	 */
+	void takeOver(WriteAheadLog wal) throws IOException {
+		long messages = WriteAheadLog.settle();
+		if (wal != null) {
+			wal.takeOver();
+		}
+		System.out.println("Took over from primary coordinator " + ShardRing.key(primary) + " with "
+				+ Coordinator.participants.size() + " participants and " + messages + " messages");
+	}
+
+	private void reset() {
+		Coordinator.participants = new ParticipantRegistry(false);
+		Group.clear();
+	}
+}
@@ -0,0 +1,82 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Decides whether coordinator workers and participant threads run on platform
+ * threads or on virtual threads. The mode is read from a system property whose
+ * value is either platform (default) or virtual. Virtual threads need Java 21,
+ * on an older runtime the virtual mode falls back to one platform thread per
+ * task.
+ */
+final class ThreadMode {
+
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+	public static final String VIRTUAL_UNAVAILABLE = "Virtual threads are not available on this Java runtime, using platform threads";
+
+	private boolean virtual;
+	private ThreadFactory virtualFactory;
+
+	private ThreadMode(boolean virtual) {
+		this.virtual = virtual;
+		if (virtual) {
+			virtualFactory = lookupVirtualFactory();
+			if (virtualFactory == null) {
+				System.out.println(VIRTUAL_UNAVAILABLE);
+			}
+		}
+	}
+
+	static ThreadMode fromProperty(String property) {
+		return new ThreadMode(VIRTUAL.equals(System.getProperty(property, PLATFORM)));
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/*
+	 * Creates an unstarted thread for the task
+	 */
+	public Thread newThread(Runnable task, String name) {
+		if (virtualFactory != null) {
+			Thread thread = virtualFactory.newThread(task);
+			thread.setName(name);
+			return thread;
+		}
+		return new Thread(task, name);
+	}
+
+	/*
+	 * Executor for coordinator workers. In platform mode this is a pool of
+	 * maxThreads threads, in virtual mode every worker gets a thread of its own.
+	 */
+	public ExecutorService newWorkerPool(int maxThreads) {
+		if (!virtual) {
+			return Executors.newFixedThreadPool(maxThreads);
+		}
+		if (virtualFactory != null) {
+			return Executors.newCachedThreadPool(virtualFactory);
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/*
+	 * Thread.ofVirtual().factory() looked up reflectively so that the code still
+	 * compiles and runs on runtimes without virtual threads
+	 */
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+}
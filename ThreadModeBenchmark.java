@@ -0,0 +1,223 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Compares the coordinator's fixed thread pool with virtual threads. A
+ * coordinator is started in this JVM and the requested number of simulated
+ * participants connect and register with it. One of them then multicasts
+ * messages and the time from msend until every member received each message is
+ * measured.
+ *
+ * Run one configuration per JVM, e.g.
+ * java -Dcoordinator.threads=platform ThreadModeBenchmark 1000 100
+ * java -Dcoordinator.threads=virtual ThreadModeBenchmark 10000 100
+ */
+public class ThreadModeBenchmark {
+
+	static final long DELIVERY_TIMEOUT_MS = 60000;
+
+	int participants;
+	int messages;
+
+	List<Socket> controlSockets = new ArrayList<Socket>();
+	int refused;
+
+	// Receive side shared by all simulated participants
+	ServerSocketChannel msendServer;
+	volatile long[] latencies;
+	AtomicInteger deliveries = new AtomicInteger();
+
+	ThreadModeBenchmark(int participants, int messages) {
+		this.participants = participants;
+		this.messages = messages;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int participants = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		new ThreadModeBenchmark(participants, messages).run();
+		System.exit(0);
+	}
+
+	void run() throws Exception {
+		PrintStream results = System.out;
+
+		// The coordinator reports every connection, which is not part of the measurement
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+
+		int port;
+		ServerSocket probe = new ServerSocket(0);
+		port = probe.getLocalPort();
+		probe.close();
+		Coordinator.threshold = 60;
+		Thread coordinator = new Thread(new Coordinator(port), "coordinator");
+		coordinator.setDaemon(true);
+		coordinator.start();
+		Thread.sleep(500);
+
+		msendServer = ServerSocketChannel.open();
+		msendServer.bind(new InetSocketAddress("127.0.0.1", 0));
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		long connectStart = System.nanoTime();
+		for (int i = 0; i < participants; i++) {
+			connect(port, i + 1);
+		}
+		long connectMillis = (System.nanoTime() - connectStart) / 1000000;
+
+		int members = controlSockets.size();
+		latencies = new long[members * messages];
+		long fanoutNanos = 0;
+		if (members > 0) {
+			Socket sender = controlSockets.get(0);
+			DataInputStream dis = new DataInputStream(sender.getInputStream());
+			DataOutputStream dos = new DataOutputStream(sender.getOutputStream());
+			long sendStart = System.nanoTime();
+			for (int m = 0; m < messages; m++) {
+				dos.writeUTF("msend " + System.nanoTime());
+				dos.flush();
+				dis.readUTF();
+			}
+			long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+			while (deliveries.get() < latencies.length && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			fanoutNanos = System.nanoTime() - sendStart;
+		}
+
+		int delivered = Math.min(deliveries.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, delivered);
+		Arrays.sort(sorted);
+		results.println("mode=" + (Coordinator.threadMode.isVirtual() ? ThreadMode.VIRTUAL : ThreadMode.PLATFORM)
+				+ " participants=" + participants + " sustained=" + members + " refused=" + refused
+				+ " connectMs=" + connectMillis);
+		results.println("messages=" + messages + " deliveries=" + delivered + "/" + latencies.length
+				+ " totalMs=" + fanoutNanos / 1000000 + " p50Ms=" + millis(percentile(sorted, 0.50))
+				+ " p99Ms=" + millis(percentile(sorted, 0.99)) + " maxMs="
+				+ millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+	}
+
+	/*
+	 * Opens the control connection of one simulated participant and registers it
+	 * when the coordinator accepted the connection
+	 */
+	private void connect(int port, int participantId) {
+		try {
+			Socket socket = new Socket("127.0.0.1", port);
+			DataInputStream dis = new DataInputStream(socket.getInputStream());
+			DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+			if (!dis.readUTF().equals(Coordinator.PARTICIPANT_CONN_ACCEPT)) {
+				refused++;
+				socket.close();
+				return;
+			}
+			dos.writeUTF("register " + participantId + ",127.0.0.1," + msendServer.socket().getLocalPort());
+			dos.flush();
+			if (!dis.readUTF().equals(CoordinatorWorker.PARTICIPANT_REGISTER_NOTIFICATION)) {
+				refused++;
+				socket.close();
+				return;
+			}
+			controlSockets.add(socket);
+		} catch (IOException e) {
+			refused++;
+		}
+	}
+
+	/*
+	 * Accepts the msend connections of all simulated participants and records
+	 * the latency of every message from the send time carried in its text
+	 */
+	private void receive() {
+		try {
+			Selector selector = Selector.open();
+			msendServer.configureBlocking(false);
+			msendServer.register(selector, SelectionKey.OP_ACCEPT);
+			while (true) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isAcceptable()) {
+						SocketChannel channel = msendServer.accept();
+						if (channel != null) {
+							channel.configureBlocking(false);
+							channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(4096));
+						}
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		if (channel.read(buffer) < 0) {
+			key.cancel();
+			channel.close();
+			return;
+		}
+		long now = System.nanoTime();
+		buffer.flip();
+		while (buffer.remaining() >= 2) {
+			int length = buffer.getShort(buffer.position()) & 0xffff;
+			if (buffer.remaining() < 2 + length) {
+				break;
+			}
+			byte[] text = new byte[length];
+			buffer.position(buffer.position() + 2);
+			buffer.get(text);
+			long sent = Long.parseLong(new String(text, StandardCharsets.UTF_8).trim());
+			int slot = deliveries.getAndIncrement();
+			if (latencies != null && slot < latencies.length) {
+				latencies[slot] = now - sent;
+			}
+		}
+		buffer.compact();
+	}
+
+	static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1000000.0);
+	}
+}
@@ -0,0 +1,814 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead log of the coordinator state. Every register, deregister,
+ * disconnect, reconnect and msend is appended as a record before it is
+ * acknowledged to the participant, and a snapshot of all participants and the
+ * pending messages is written every snapshotEvents records. On startup the
+ * snapshot is loaded and the records logged after it are applied again, so
+ * registrations and the messages kept for offline participants survive a
+ * restart.
+ *
+ * Records are stored as [body length][crc32 of body][body] in numbered segment
+ * files. A new segment is started for every snapshot and the segments covered
+ * by it are deleted. A snapshot is a header followed by records of the same
+ * format, one per participant, one per pending message and one per group.
+ *
+ * Records of participants and messages end with the name of their group. Logs
+ * written before there were groups do not have it and are recovered into the
+ * default group.
+ *
+ * Standby coordinators receive the same records as they are appended, after
+ * the state at the time they started following, see LogShipper and Standby.
+ */
+class WriteAheadLog {
+
+	static final byte REGISTER = 1;
+	static final byte DEREGISTER = 2;
+	static final byte DISCONNECT = 3;
+	static final byte RECONNECT = 4;
+	static final byte MSEND = 5;
+
+	// Participant with its status and cursor, only found in snapshots
+	static final byte PARTICIPANT = 6;
+
+	// Last sequence number of a group's message log, only found in snapshots
+	// after the messages of the group
+	static final byte GROUP = 7;
+
+	static final int SNAPSHOT_MAGIC = 0x50503353;
+	static final String SNAPSHOT_FILE = "snapshot.dat";
+	static final String SEGMENT_PREFIX = "wal-";
+	static final String SEGMENT_SUFFIX = ".log";
+	static final int SNAPSHOT_HEADER = 16;
+	static final int REPLAY_WINDOW = 1 << 28;
+
+	/*
+	 * When appended records are forced to disk. EVENT forces every record before
+	 * it is acknowledged, GROUP forces all records waiting at that moment with a
+	 * single fsync and INTERVAL forces in the background every intervalMs without
+	 * making the participant wait.
+	 */
+	enum FsyncPolicy {
+		EVENT, GROUP, INTERVAL
+	}
+
+	File dir;
+	FsyncPolicy policy;
+	long intervalMs;
+	int snapshotEvents;
+
+	// Segment currently appended to
+	int segment;
+	FileChannel channel;
+
+	// Records appended but not yet written to the segment
+	ByteArrayOutputStream staging = new ByteArrayOutputStream(64 * 1024);
+	DataOutputStream stagingOut = new DataOutputStream(staging);
+	ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+	DataOutputStream bodyOut = new DataOutputStream(body);
+	CRC32 crc = new CRC32();
+	byte[] stringBuffer = new byte[256];
+	long appendedPosition;
+	long syncedPosition;
+	Object syncLock = new Object();
+
+	// Callers of commitLater waiting for their records to be forced, see wal-writer
+	List<PendingCommit> waiting = new ArrayList<PendingCommit>();
+
+	long recoveredRecords;
+	int eventsSinceSnapshot;
+	boolean snapshotRequested;
+
+	// Sends every appended record on to standby coordinators, null without any
+	LogShipper shipper;
+
+	WriteAheadLog(File dir, FsyncPolicy policy, long intervalMs, int snapshotEvents) {
+		this.dir = dir;
+		this.policy = policy;
+		this.intervalMs = intervalMs;
+		this.snapshotEvents = snapshotEvents;
+	}
+
+	/*
+	 * Creates the write-ahead log configured by the coordinator.wal.* system
+	 * properties, or returns null when coordinator.wal.dir is not set
+	 */
+	static WriteAheadLog fromProperties() {
+		String dir = System.getProperty("coordinator.wal.dir");
+		if (dir == null) {
+			return null;
+		}
+		FsyncPolicy policy = FsyncPolicy.valueOf(System.getProperty("coordinator.wal.fsync", "group").toUpperCase());
+		long intervalMs = Long.getLong("coordinator.wal.fsyncIntervalMs", 1000);
+		int snapshotEvents = Integer.getInteger("coordinator.wal.snapshotEvents", 100000);
+		return new WriteAheadLog(new File(dir), policy, intervalMs, snapshotEvents);
+	}
+
+	/**
+	 * Rebuilds the participant map and the message log from the snapshot and the
+	 * segments logged after it, then starts a new segment and the background
+	 * threads. Participants that were ONLINE come back OFFLINE since their
+	 * connections are gone; they get their backlog when they reconnect.
+	 */
+	void open() throws IOException {
+		long start = System.currentTimeMillis();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create write-ahead log directory " + dir);
+		}
+		int firstSegment = loadSnapshot();
+		int[] segments = listSegments();
+		for (int s : segments) {
+			if (s >= firstSegment) {
+				replaySegment(segmentFile(s));
+			}
+			segment = Math.max(segment, s);
+			if (segmentFile(s).length() == 0) {
+				segmentFile(s).delete();
+			}
+		}
+		long messages = settle();
+		System.out.println("Recovered " + Coordinator.participants.size() + " participants and " + messages
+				+ " messages from " + recoveredRecords + " log records in " + (System.currentTimeMillis() - start)
+				+ " ms");
+		start();
+	}
+
+	/**
+	 * Used by a standby that takes over from its primary. The state received
+	 * from the primary replaces whatever is in the directory: a snapshot of it
+	 * is written right away and older segments are deleted.
+	 */
+	void takeOver() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create write-ahead log directory " + dir);
+		}
+		for (int s : listSegments()) {
+			segment = Math.max(segment, s);
+		}
+		start();
+		snapshot();
+	}
+
+	/*
+	 * Participants that were ONLINE come back OFFLINE since their connections are
+	 * gone, and messages every member got past are trimmed. Returns the number
+	 * of messages kept.
+	 */
+	static long settle() {
+		for (Coordinator.MSendParticipant p : Coordinator.participants.members()) {
+			if (p.getStatus() == ParticipantStatus.ONLINE) {
+				p.setStatus(ParticipantStatus.OFFLINE);
+			}
+		}
+		long messages = 0;
+		for (Group group : Group.all()) {
+			group.messageLog.trimTo(group.minCursor());
+			messages += group.messageLog.size();
+		}
+		return messages;
+	}
+
+	/*
+	 * Starts a new segment and the background threads
+	 */
+	private void start() throws IOException {
+		startSegment(segment + 1);
+		if (policy == FsyncPolicy.INTERVAL) {
+			startDaemon(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(WriteAheadLog.this.intervalMs);
+							sync();
+						} catch (InterruptedException e) {
+							return;
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}, "wal-fsync");
+		}
+		if (policy != FsyncPolicy.INTERVAL) {
+			startDaemon(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							completeWaiting();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, "wal-writer");
+		}
+		startDaemon(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						awaitSnapshotRequest();
+						snapshot();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "wal-snapshot");
+	}
+
+	long logRegister(Coordinator.MSendParticipant p) throws IOException {
+		synchronized (this) {
+			body.reset();
+			bodyOut.writeByte(REGISTER);
+			bodyOut.writeInt(p.getParticipantID());
+			bodyOut.writeUTF(p.getParticipantIP().getHostAddress());
+			bodyOut.writeInt(p.getMSendPort());
+			bodyOut.writeLong(p.getCursor());
+			bodyOut.writeUTF(p.group.name);
+			return appendRecord();
+		}
+	}
+
+	long logDeregister(int participantId) throws IOException {
+		synchronized (this) {
+			body.reset();
+			bodyOut.writeByte(DEREGISTER);
+			bodyOut.writeInt(participantId);
+			return appendRecord();
+		}
+	}
+
+	long logDisconnect(Coordinator.MSendParticipant p) throws IOException {
+		synchronized (this) {
+			body.reset();
+			bodyOut.writeByte(DISCONNECT);
+			bodyOut.writeInt(p.getParticipantID());
+			bodyOut.writeLong(p.getCursor());
+			return appendRecord();
+		}
+	}
+
+	long logReconnect(Coordinator.MSendParticipant p) throws IOException {
+		synchronized (this) {
+			body.reset();
+			bodyOut.writeByte(RECONNECT);
+			bodyOut.writeInt(p.getParticipantID());
+			bodyOut.writeUTF(p.getParticipantIP().getHostAddress());
+			bodyOut.writeInt(p.getMSendPort());
+			return appendRecord();
+		}
+	}
+
+	/*
+	 * Logs a message that was just appended to the group's message log. Called
+	 * while holding the message log so that records are in sequence order.
+	 */
+	long logMSend(Group group, MessageBean m) throws IOException {
+		synchronized (this) {
+			body.reset();
+			bodyOut.writeByte(MSEND);
+			writeMessage(m, bodyOut);
+			bodyOut.writeUTF(group.name);
+			return appendRecord();
+		}
+	}
+
+	private long appendRecord() throws IOException {
+		writeRecord(body, crc, stagingOut);
+		if (shipper != null) {
+			shipper.ship(body, (int) crc.getValue());
+		}
+		appendedPosition += 8 + body.size();
+		if (++eventsSinceSnapshot >= snapshotEvents && !snapshotRequested) {
+			snapshotRequested = true;
+			notifyAll();
+		}
+		return appendedPosition;
+	}
+
+	/**
+	 * Waits until the record ending at position is durable as required by the
+	 * fsync policy. With GROUP the first caller writes and forces everything
+	 * appended so far, callers arriving meanwhile are covered by the next fsync.
+	 */
+	void commit(long position) throws IOException {
+		if (policy == FsyncPolicy.INTERVAL) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (policy == FsyncPolicy.EVENT || syncedPosition < position) {
+				sync();
+			}
+		}
+	}
+
+	/**
+	 * Runs then on the wal-writer once the record ending at position is durable
+	 * as commit would wait for, without waiting. Used by event loops, which must
+	 * not stall every connection of the loop for an fsync. All records waiting at
+	 * that moment are forced together and the waiting callers are run in the
+	 * order their records were logged. Returns false, without running then, when
+	 * the fsync policy does not wait.
+	 */
+	boolean commitLater(long position, Runnable then) {
+		if (policy == FsyncPolicy.INTERVAL) {
+			return false;
+		}
+		synchronized (waiting) {
+			waiting.add(new PendingCommit(position, then));
+			waiting.notify();
+		}
+		return true;
+	}
+
+	private void completeWaiting() throws InterruptedException {
+		List<PendingCommit> batch;
+		synchronized (waiting) {
+			while (waiting.isEmpty()) {
+				waiting.wait();
+			}
+			batch = new ArrayList<PendingCommit>(waiting);
+			waiting.clear();
+		}
+		Collections.sort(batch);
+		try {
+			commit(batch.get(batch.size() - 1).position);
+		} catch (IOException e) {
+			// The callers are not answered, as when commit fails on their own thread
+			e.printStackTrace();
+			return;
+		}
+		for (PendingCommit pending : batch) {
+			pending.then.run();
+		}
+	}
+
+	static class PendingCommit implements Comparable<PendingCommit> {
+
+		long position;
+		Runnable then;
+
+		PendingCommit(long position, Runnable then) {
+			this.position = position;
+			this.then = then;
+		}
+
+		@Override
+		public int compareTo(PendingCommit other) {
+			return Long.compare(position, other.position);
+		}
+	}
+
+	/*
+	 * Writes the staged records to the segment and forces it to disk
+	 */
+	void sync() throws IOException {
+		synchronized (syncLock) {
+			byte[] data;
+			long position;
+			synchronized (this) {
+				data = staging.toByteArray();
+				staging.reset();
+				position = appendedPosition;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+			syncedPosition = position;
+		}
+	}
+
+	private synchronized void awaitSnapshotRequest() throws InterruptedException {
+		while (!snapshotRequested) {
+			wait();
+		}
+	}
+
+	/**
+	 * Starts a new segment and writes a snapshot of the state. Records logged
+	 * while the snapshot is taken land in the new segment and are applied again
+	 * on top of the snapshot at startup, which is harmless as every record sets
+	 * state rather than changing it.
+	 */
+	void snapshot() throws IOException {
+		int snapshotSegment;
+		synchronized (syncLock) {
+			sync();
+			synchronized (this) {
+				snapshotSegment = segment + 1;
+				startSegment(snapshotSegment);
+				eventsSinceSnapshot = 0;
+				snapshotRequested = false;
+			}
+		}
+
+		State state = State.capture();
+		File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 20));
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(snapshotSegment);
+		out.writeLong(state.lastSequence());
+		state.writeTo(out);
+		out.flush();
+		fos.getFD().sync();
+		out.close();
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		for (int s : listSegments()) {
+			if (s < snapshotSegment) {
+				segmentFile(s).delete();
+			}
+		}
+	}
+
+	/*
+	 * Participants and pending messages of all groups, as written to a snapshot
+	 * and sent to a standby that starts following
+	 */
+	static class State {
+
+		List<Coordinator.MSendParticipant> participants = Arrays.asList(Coordinator.participants.members());
+		List<Group> groups = new ArrayList<Group>();
+		List<List<MessageBean>> messages = new ArrayList<List<MessageBean>>();
+		List<Long> lastSequences = new ArrayList<Long>();
+
+		static State capture() {
+			State state = new State();
+			for (Group group : Group.all()) {
+				List<MessageBean> groupMessages = new ArrayList<MessageBean>();
+				synchronized (group.messageLog) {
+					long last = group.messageLog.lastSequence();
+					group.messageLog.read(group.messageLog.firstSequence(), last, Integer.MAX_VALUE, groupMessages);
+					state.lastSequences.add(last);
+				}
+				state.groups.add(group);
+				state.messages.add(groupMessages);
+			}
+			return state;
+		}
+
+		/*
+		 * Last sequence number of the default group, the one of the snapshot header
+		 */
+		long lastSequence() {
+			int index = groups.indexOf(Group.defaultGroup());
+			return index >= 0 ? lastSequences.get(index) : 0;
+		}
+
+		/*
+		 * Writes one record per participant, per message within the threshold and
+		 * per group
+		 */
+		void writeTo(DataOutputStream out) throws IOException {
+			ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+			DataOutputStream recordOut = new DataOutputStream(record);
+			CRC32 recordCrc = new CRC32();
+			for (Coordinator.MSendParticipant p : participants) {
+				record.reset();
+				recordOut.writeByte(PARTICIPANT);
+				recordOut.writeInt(p.getParticipantID());
+				recordOut.writeUTF(p.getParticipantIP().getHostAddress());
+				recordOut.writeInt(p.getMSendPort());
+				recordOut.writeByte(p.getStatus().ordinal());
+				recordOut.writeLong(p.getCursor());
+				recordOut.writeUTF(p.group.name);
+				writeRecord(record, recordCrc, out);
+			}
+			long now = System.currentTimeMillis();
+			for (int g = 0; g < groups.size(); g++) {
+				String name = groups.get(g).name;
+				for (MessageBean m : messages.get(g)) {
+					if ((now - m.getTimestamp()) / 1000 <= Coordinator.threshold) {
+						record.reset();
+						recordOut.writeByte(MSEND);
+						writeMessage(m, recordOut);
+						recordOut.writeUTF(name);
+						writeRecord(record, recordCrc, out);
+					}
+				}
+
+				// Sequence numbers of messages not kept must not be given out again
+				record.reset();
+				recordOut.writeByte(GROUP);
+				recordOut.writeUTF(name);
+				recordOut.writeLong(lastSequences.get(g));
+				writeRecord(record, recordCrc, out);
+			}
+		}
+	}
+
+	/*
+	 * Applies a record received from the primary, see Standby. Returns false when
+	 * it fails its checksum.
+	 */
+	boolean applyShipped(byte[] record, int length, int checksum) throws IOException {
+		crc.reset();
+		crc.update(record, 0, length);
+		if ((int) crc.getValue() != checksum) {
+			return false;
+		}
+		apply(ByteBuffer.wrap(record, 0, length), System.currentTimeMillis());
+		recoveredRecords++;
+		return true;
+	}
+
+	/*
+	 * Loads the snapshot and returns the first segment logged after it
+	 */
+	private int loadSnapshot() throws IOException {
+		File file = new File(dir, SNAPSHOT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		int firstSegment;
+		long lastSequence;
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a coordinator snapshot: " + file);
+			}
+			firstSegment = in.readInt();
+			lastSequence = in.readLong();
+		} finally {
+			in.close();
+		}
+		replay(file, SNAPSHOT_HEADER);
+		MessageLog defaultLog = Group.defaultGroup().messageLog;
+		if (defaultLog.lastSequence() < lastSequence) {
+			defaultLog.restore(lastSequence, null);
+		}
+		return firstSegment;
+	}
+
+	/*
+	 * Applies the records of one segment. A record that was only partly written
+	 * when the coordinator stopped ends the segment and is cut off.
+	 */
+	private void replaySegment(File file) throws IOException {
+		long validLength = replay(file, 0);
+		if (validLength < file.length()) {
+			System.out.println("Cutting off incomplete record at " + validLength + " in " + file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(validLength);
+			raf.close();
+		}
+	}
+
+	/**
+	 * Applies the records of a file from offset on, until the end of the file or
+	 * the first record that is incomplete or fails its checksum. The file is read
+	 * through memory-mapped windows of REPLAY_WINDOW bytes. Returns the offset
+	 * after the last record applied.
+	 */
+	private long replay(File file, long offset) throws IOException {
+		long now = System.currentTimeMillis();
+		FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = in.size();
+			long position = offset;
+			long windowStart = position;
+			MappedByteBuffer window = null;
+			int windowLimit = 0;
+			while (size - position >= 8) {
+				int at = (int) (position - windowStart);
+				if (window == null || at + 8 > windowLimit) {
+					windowStart = position;
+					window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REPLAY_WINDOW, size - position));
+					windowLimit = window.limit();
+					at = 0;
+				}
+				int length = window.getInt(at);
+				int checksum = window.getInt(at + 4);
+				if (length < 1 || length > size - position - 8 || length > REPLAY_WINDOW - 8) {
+					break;
+				}
+				if (at + 8 + length > windowLimit) {
+					// The record continues past this window, map the next one from its start
+					windowStart = position;
+					window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REPLAY_WINDOW, size - position));
+					windowLimit = window.limit();
+					at = 0;
+				}
+				window.limit(at + 8 + length);
+				window.position(at + 8);
+				crc.reset();
+				crc.update(window);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				window.position(at + 8);
+				apply(window, now);
+				window.limit(windowLimit);
+				position += 8 + length;
+				recoveredRecords++;
+			}
+			return position;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(ByteBuffer record, long now) throws IOException {
+		byte type = record.get();
+		if (type == MSEND) {
+			long sequence = record.getLong();
+			int sender = record.getInt();
+			long timestamp = record.getLong();
+			int length = record.getInt();
+			String message = null;
+			if ((now - timestamp) / 1000 > Coordinator.threshold) {
+				record.position(record.position() + length);
+			} else {
+				message = readString(record, length);
+			}
+			MessageLog messageLog = readGroup(record).messageLog;
+			if (message == null) {
+				messageLog.restore(sequence, null);
+				return;
+			}
+			MessageBean m = new MessageBean(sender, message);
+			m.setTimestamp(timestamp);
+			messageLog.restore(sequence, m);
+			return;
+		}
+		if (type == GROUP) {
+			MessageLog messageLog = Group.named(readUTF(record)).messageLog;
+			long lastSequence = record.getLong();
+			if (messageLog.lastSequence() < lastSequence) {
+				messageLog.restore(lastSequence, null);
+			}
+			return;
+		}
+		int pid = record.getInt();
+		Coordinator.MSendParticipant p;
+		switch (type) {
+		case PARTICIPANT:
+			InetAddress ip = InetAddress.getByName(readUTF(record));
+			int port = record.getInt();
+			ParticipantStatus status = ParticipantStatus.values()[record.get()];
+			long cursor = record.getLong();
+			p = new Coordinator.MSendParticipant(pid, ip, port, status, readGroup(record));
+			p.setCursor(cursor);
+			restore(p);
+			break;
+		case REGISTER:
+			ip = InetAddress.getByName(readUTF(record));
+			port = record.getInt();
+			cursor = record.getLong();
+			p = new Coordinator.MSendParticipant(pid, ip, port, ParticipantStatus.ONLINE, readGroup(record));
+			p.setCursor(cursor);
+			restore(p);
+			break;
+		case DEREGISTER:
+			p = Coordinator.participants.remove(pid);
+			if (p != null) {
+				p.group.members.remove(pid);
+			}
+			break;
+		case DISCONNECT:
+			p = Coordinator.participants.get(pid);
+			if (p != null) {
+				p.setStatus(ParticipantStatus.OFFLINE);
+				p.setCursor(record.getLong());
+			}
+			break;
+		case RECONNECT:
+			p = Coordinator.participants.get(pid);
+			if (p != null) {
+				p.setParticipantIP(InetAddress.getByName(readUTF(record)));
+				p.setMSendPort(record.getInt());
+				p.setStatus(ParticipantStatus.ONLINE);
+			}
+			break;
+		default:
+			throw new IOException("Unknown write-ahead log record " + type);
+		}
+	}
+
+	private static void writeRecord(ByteArrayOutputStream body, CRC32 crc, DataOutputStream out)
+			throws IOException {
+		crc.reset();
+		crc.update(body.toByteArray(), 0, body.size());
+		out.writeInt(body.size());
+		out.writeInt((int) crc.getValue());
+		body.writeTo(out);
+	}
+
+	private static void writeMessage(MessageBean m, DataOutputStream out) throws IOException {
+		byte[] payload = m.getMessage().getBytes(StandardCharsets.UTF_8);
+		out.writeLong(m.getSequence());
+		out.writeInt(m.getParticipantId());
+		out.writeLong(m.getTimestamp());
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	/*
+	 * Reads a string written by DataOutputStream.writeUTF. Only used for IP
+	 * addresses and group names, which are plain ASCII.
+	 */
+	private String readUTF(ByteBuffer record) {
+		return readString(record, record.getShort() & 0xffff);
+	}
+
+	private String readString(ByteBuffer record, int length) {
+		if (stringBuffer.length < length) {
+			stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+		}
+		record.get(stringBuffer, 0, length);
+		return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Group at the end of a record, the default group for records logged before
+	 * there were groups
+	 */
+	private Group readGroup(ByteBuffer record) {
+		return record.hasRemaining() ? Group.named(readUTF(record)) : Group.defaultGroup();
+	}
+
+	/*
+	 * Adds a recovered participant, replacing the one with the same id
+	 */
+	private void restore(Coordinator.MSendParticipant p) {
+		Coordinator.MSendParticipant previous = Coordinator.participants.get(p.getParticipantID());
+		if (previous != null) {
+			previous.group.members.remove(previous.getParticipantID());
+		}
+		Coordinator.participants.put(p);
+		p.group.members.add(p);
+	}
+
+	/*
+	 * Flushes the current segment, if any, and continues in a new one
+	 */
+	private void startSegment(int number) throws IOException {
+		if (channel != null) {
+			channel.force(false);
+			channel.close();
+		}
+		segment = number;
+		channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	private File segmentFile(int number) {
+		return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	private int[] listSegments() {
+		String[] names = dir.list();
+		List<Integer> numbers = new ArrayList<Integer>();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					numbers.add(Integer.parseInt(
+							name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				}
+			}
+		}
+		int[] sorted = new int[numbers.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = numbers.get(i);
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static void startDaemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}